@@ -0,0 +1,111 @@
+package org.awsclients;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
+import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.AmazonEC2ClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.AmazonSNSClientBuilder;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Shared AWS clients, built the first time they are asked for and then kept for the life of the JVM. In Lambda
+ * that means across warm invocations, so only a cold start pays for building a client, its connection pool
+ * and the TLS handshakes behind it, instead of every invocation (or every call) doing so and shutting the
+ * client down again.
+ *
+ * Clients are keyed by service, region and every client configuration setting that changes how the client
+ * behaves: pool size, timeouts, retries, throttling, protocol, proxy and so on. Handlers tune the configuration
+ * for what they do (a handler that fans out many S3 calls wants more connections than one that sends a single
+ * notification, a handler writing to DynamoDB wants its own retry and timeout settings) and only handlers asking
+ * for the same service, region and settings share one client. Clients are thread safe, and must not be shut
+ * down by callers.
+ *
+ * <pre>
+ * AmazonS3 s3 = AwsClientRegistry.s3("us-west-2", AwsClientRegistry.connections(16));
+ * </pre>
+ */
+public final class AwsClientRegistry {
+    private static final Map<List<Object>, Object> CLIENTS = new ConcurrentHashMap<>();
+
+    private AwsClientRegistry() {
+    }
+
+    /**
+     * Default client configuration with a connection pool of maxConnections.
+     */
+    public static ClientConfiguration connections(int maxConnections) {
+        return new ClientConfiguration().withMaxConnections(maxConnections);
+    }
+
+    public static AmazonS3 s3(String region, ClientConfiguration configuration) {
+        return client("s3", region, configuration, () -> AmazonS3ClientBuilder.standard()
+                .withRegion(region)
+                .withClientConfiguration(configuration)
+                .build());
+    }
+
+    public static AmazonEC2 ec2(String region, ClientConfiguration configuration) {
+        return client("ec2", region, configuration, () -> AmazonEC2ClientBuilder.standard()
+                .withRegion(region)
+                .withClientConfiguration(configuration)
+                .build());
+    }
+
+    public static AmazonSNS sns(String region, ClientConfiguration configuration) {
+        return client("sns", region, configuration, () -> AmazonSNSClientBuilder.standard()
+                .withRegion(region)
+                .withClientConfiguration(configuration)
+                .build());
+    }
+
+    public static AmazonDynamoDB dynamoDB(String region, ClientConfiguration configuration) {
+        return client("dynamodb", region, configuration, () -> AmazonDynamoDBClientBuilder.standard()
+                .withRegion(region)
+                .withClientConfiguration(configuration)
+                .build());
+    }
+
+    /**
+     * The client for service and region with configuration's settings, built by builder if there is none yet.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T client(String service, String region, ClientConfiguration configuration, Supplier<T> builder) {
+        return (T) CLIENTS.computeIfAbsent(key(service, region, configuration), ignored -> builder.get());
+    }
+
+    /**
+     * Service, region and the settings of configuration that change how a client behaves, so two keys are equal
+     * only if a client built for one behaves like a client built for the other. The retry policy has no equals
+     * and is compared by identity, the predefined policies are shared instances.
+     */
+    private static List<Object> key(String service, String region, ClientConfiguration configuration) {
+        return Arrays.asList(service, region,
+                configuration.getMaxConnections(),
+                configuration.getConnectionTimeout(),
+                configuration.getSocketTimeout(),
+                configuration.getRequestTimeout(),
+                configuration.getClientExecutionTimeout(),
+                configuration.getMaxErrorRetry(),
+                configuration.useThrottledRetries(),
+                configuration.getRetryPolicy(),
+                configuration.getProtocol(),
+                configuration.getProxyHost(),
+                configuration.getProxyPort(),
+                configuration.getUserAgentPrefix(),
+                configuration.getUserAgentSuffix(),
+                configuration.getConnectionTTL(),
+                configuration.getConnectionMaxIdleMillis(),
+                configuration.useTcpKeepAlive(),
+                configuration.useGzip(),
+                configuration.getSignerOverride());
+    }
+}
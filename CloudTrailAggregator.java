@@ -0,0 +1,277 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Counts CloudTrail events as they stream by: calls per event name, per principal, per principal and error
+ * code, and per minute. Strings are turned into {@link CloudTrailDictionary} ids and counted in
+ * {@link LongCounter}s, open addressing maps from long to long, so counting hundreds of millions of events
+ * doesn't allocate a boxed Long or map entry per event. Strings and boxes only show up when results are read.
+ *
+ * An aggregator is not thread safe. Parallel workers each fill their own and the results are combined with
+ * {@link #merge}, which works across dictionaries so aggregators don't have to share anything while counting.
+ * {@link PerThread} does exactly that for a {@link CloudTrailPipeline}:
+ * <pre>
+ * CloudTrailAggregator.PerThread aggregation = new CloudTrailAggregator.PerThread();
+ * // run a CloudTrailPipeline with aggregation as its sink, then
+ * CloudTrailAggregator totals = aggregation.merged();
+ * totals.topCallers(10).forEach(caller -&gt; System.out.println(caller.getKey() + " " + caller.getValue()));
+ * </pre>
+ */
+public class CloudTrailAggregator {
+    private static final long MILLIS_PER_MINUTE = 60_000;
+
+    private final CloudTrailDictionary dictionary = new CloudTrailDictionary();
+    private final LongCounter eventNames = new LongCounter();
+    private final LongCounter principals = new LongCounter();
+    // principal id in the high half, error code id in the low half
+    private final LongCounter principalErrors = new LongCounter();
+    // keyed by minutes since the epoch
+    private final LongCounter minutes = new LongCounter();
+    private long events;
+
+    public void add(JsonNode event) {
+        this.events++;
+        int principal = this.dictionary.idOf(CloudTrailEventIndex.principalOf(event));
+        int errorCode = this.dictionary.idOf(CloudTrailEventIndex.textOf(event, "errorCode"));
+        this.eventNames.increment(this.dictionary.idOf(CloudTrailEventIndex.textOf(event, "eventName")), 1);
+        this.principals.increment(principal, 1);
+        this.principalErrors.increment(pair(principal, errorCode), 1);
+        try {
+            long eventTime = Instant.parse(event.path("eventTime").asText()).toEpochMilli();
+            this.minutes.increment(Math.floorDiv(eventTime, MILLIS_PER_MINUTE), 1);
+        } catch (DateTimeParseException e) {
+            // still counted everywhere else, it just has no minute to go in
+        }
+    }
+
+    /**
+     * Adds every count of other to this one. other is left as it was.
+     */
+    public void merge(CloudTrailAggregator other) {
+        this.events += other.events;
+        // other's ids mean nothing here, so they are translated through the strings they stand for
+        int[] translated = new int[other.dictionary.size() + 1];
+        for (int id = 1; id <= other.dictionary.size(); id++) {
+            translated[id] = this.dictionary.idOf(other.dictionary.valueOf(id));
+        }
+        other.eventNames.forEach((id, count) -> this.eventNames.increment(translated[(int) id], count));
+        other.principals.forEach((id, count) -> this.principals.increment(translated[(int) id], count));
+        other.principalErrors.forEach((key, count) -> this.principalErrors.increment(
+                pair(translated[(int) (key >>> 32)], translated[(int) key]), count));
+        other.minutes.forEach(this.minutes::increment);
+    }
+
+    public long getEvents() {
+        return this.events;
+    }
+
+    /**
+     * The n event names called most often, most often first.
+     */
+    public List<Map.Entry<String, Long>> topEventNames(int n) {
+        return top(this.eventNames, n, key -> String.valueOf(this.dictionary.valueOf((int) key)));
+    }
+
+    /**
+     * The n principals that made the most calls, most calls first.
+     */
+    public List<Map.Entry<String, Long>> topCallers(int n) {
+        return top(this.principals, n, key -> String.valueOf(this.dictionary.valueOf((int) key)));
+    }
+
+    /**
+     * The n most frequent principal and error code combinations of calls that failed, keyed "principal errorCode".
+     */
+    public List<Map.Entry<String, Long>> topErrors(int n) {
+        LongCounter errors = new LongCounter();
+        this.principalErrors.forEach((key, count) -> {
+            if ((int) key != CloudTrailDictionary.NONE) {
+                errors.increment(key, count);
+            }
+        });
+        return top(errors, n, key -> this.dictionary.valueOf((int) (key >>> 32)) + " "
+                + this.dictionary.valueOf((int) key));
+    }
+
+    public long countOf(String eventName) {
+        int id = this.dictionary.find(eventName);
+        return id == -1 ? 0 : this.eventNames.get(id);
+    }
+
+    /**
+     * Calls per minute, keyed by the start of the minute.
+     */
+    public NavigableMap<Instant, Long> callsPerMinute() {
+        NavigableMap<Instant, Long> perMinute = new TreeMap<>();
+        this.minutes.forEach((minute, count) -> perMinute.put(Instant.ofEpochMilli(minute * MILLIS_PER_MINUTE), count));
+        return perMinute;
+    }
+
+    private static long pair(int high, int low) {
+        return ((long) high << 32) | (low & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Top n keys by count, found with a small sorted array instead of sorting (or boxing) every entry.
+     */
+    private static List<Map.Entry<String, Long>> top(LongCounter counter, int n, KeyName keyName) {
+        long[] topKeys = new long[n];
+        long[] topCounts = new long[n];
+        int[] size = {0};
+        counter.forEach((key, count) -> {
+            int position = size[0];
+            if (position == n) {
+                if (n == 0 || count <= topCounts[n - 1]) {
+                    return;
+                }
+                position = n - 1;
+            } else {
+                size[0]++;
+            }
+            while (position > 0 && topCounts[position - 1] < count) {
+                topKeys[position] = topKeys[position - 1];
+                topCounts[position] = topCounts[position - 1];
+                position--;
+            }
+            topKeys[position] = key;
+            topCounts[position] = count;
+        });
+        List<Map.Entry<String, Long>> top = new ArrayList<>(size[0]);
+        for (int i = 0; i < size[0]; i++) {
+            top.add(new AbstractMap.SimpleImmutableEntry<>(keyName.of(topKeys[i]), topCounts[i]));
+        }
+        return top;
+    }
+
+    @FunctionalInterface
+    private interface KeyName {
+        String of(long key);
+    }
+
+    @FunctionalInterface
+    interface LongLongConsumer {
+        void accept(long key, long value);
+    }
+
+    /**
+     * Map from long keys to long counts, with keys and counts in two parallel arrays and linear probing. A
+     * separate flag marks the zero key, so every long is a valid key.
+     */
+    static final class LongCounter {
+        private long[] keys = new long[64];
+        private long[] counts = new long[64];
+        private boolean hasZeroKey;
+        private long zeroKeyCount;
+        private int size;
+
+        void increment(long key, long delta) {
+            if (key == 0) {
+                this.hasZeroKey = true;
+                this.zeroKeyCount += delta;
+                return;
+            }
+            int mask = this.keys.length - 1;
+            for (int slot = slotOf(key, mask); ; slot = (slot + 1) & mask) {
+                if (this.keys[slot] == key) {
+                    this.counts[slot] += delta;
+                    return;
+                }
+                if (this.keys[slot] == 0) {
+                    this.keys[slot] = key;
+                    this.counts[slot] = delta;
+                    if (++this.size * 2 > this.keys.length) {
+                        grow();
+                    }
+                    return;
+                }
+            }
+        }
+
+        long get(long key) {
+            if (key == 0) {
+                return this.zeroKeyCount;
+            }
+            int mask = this.keys.length - 1;
+            for (int slot = slotOf(key, mask); this.keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (this.keys[slot] == key) {
+                    return this.counts[slot];
+                }
+            }
+            return 0;
+        }
+
+        void forEach(LongLongConsumer consumer) {
+            if (this.hasZeroKey) {
+                consumer.accept(0, this.zeroKeyCount);
+            }
+            for (int slot = 0; slot < this.keys.length; slot++) {
+                if (this.keys[slot] != 0) {
+                    consumer.accept(this.keys[slot], this.counts[slot]);
+                }
+            }
+        }
+
+        private void grow() {
+            long[] oldKeys = this.keys;
+            long[] oldCounts = this.counts;
+            this.keys = new long[oldKeys.length * 2];
+            this.counts = new long[oldKeys.length * 2];
+            int mask = this.keys.length - 1;
+            for (int old = 0; old < oldKeys.length; old++) {
+                if (oldKeys[old] != 0) {
+                    int slot = slotOf(oldKeys[old], mask);
+                    while (this.keys[slot] != 0) {
+                        slot = (slot + 1) & mask;
+                    }
+                    this.keys[slot] = oldKeys[old];
+                    this.counts[slot] = oldCounts[old];
+                }
+            }
+        }
+
+        private static int slotOf(long key, int mask) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+
+    /**
+     * Pipeline sink that gives every parse thread its own aggregator, so counting needs no locking, and merges
+     * them once the pipeline has finished.
+     */
+    public static final class PerThread implements CloudTrailPipeline.LogEventSink {
+        private final List<CloudTrailAggregator> aggregators = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<CloudTrailAggregator> aggregator = ThreadLocal.withInitial(() -> {
+            CloudTrailAggregator threadAggregator = new CloudTrailAggregator();
+            this.aggregators.add(threadAggregator);
+            return threadAggregator;
+        });
+
+        @Override
+        public void onEvent(String logKey, int eventIndex, ObjectNode event) {
+            this.aggregator.get().add(event);
+        }
+
+        /**
+         * Every thread's counts combined. Only call once no more events are coming, e.g. after
+         * {@link CloudTrailPipeline#finish()}.
+         */
+        public CloudTrailAggregator merged() {
+            CloudTrailAggregator merged = new CloudTrailAggregator();
+            for (CloudTrailAggregator threadAggregator : this.aggregators) {
+                merged.merge(threadAggregator);
+            }
+            return merged;
+        }
+    }
+}
@@ -0,0 +1,578 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Columnar local copy of CloudTrail events for long range analytics, so scans don't have to parse gzip JSON
+ * again. Events are partitioned by day into day=yyyy-MM-dd directories of part files. Every part file holds
+ * up to {@link #ROWS_PER_FILE} events stored column by column:
+ * <ul>
+ *     <li>eventTime as delta encoded longs (epoch millis)</li>
+ *     <li>every other column as a {@link CloudTrailDictionary} of the distinct values in the file plus one int id
+ *     per event, 0 for a missing value</li>
+ *     <li>except for the {@link #PLAIN_COLUMNS}, whose values are (nearly) all distinct, so a dictionary would only
+ *     add an id per event: they are stored as the plain values</li>
+ * </ul>
+ * Each column is Deflate compressed on its own, and the file starts with a directory of where every column
+ * is, so a scan only reads and inflates the columns it asks for.
+ *
+ * The writer only buffers the last {@link #MAX_OPEN_DAYS} days it was given events for. CloudTrail delivers logs
+ * roughly in time order, so by the time events of a new day arrive an older day is done: its rows are written
+ * and its buffer is reused for the new day. Exporting a year takes the memory of a few days, not of every day.
+ *
+ * <pre>
+ * try (CloudTrailColumnStore.Writer export = CloudTrailColumnStore.openWriter(root)) {
+ *     // pass export to a CloudTrailPipeline as its sink
+ * }
+ * CloudTrailColumnStore.scan(root, from, to, Arrays.asList("eventName", "errorCode"), 4, batch -&gt; {
+ *     int[] errorCodes = batch.ids("errorCode");
+ *     ...
+ * });
+ * </pre>
+ */
+public class CloudTrailColumnStore {
+    public static final String EVENT_TIME = "eventTime";
+    public static final String PRINCIPAL = "principal";
+    /**
+     * String columns, in file order after eventTime. principal is taken from userIdentity the same way as
+     * {@link CloudTrailEventIndex} does, the others are top level event fields.
+     */
+    public static final List<String> STRING_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            "eventSource", "eventName", "awsRegion", "sourceIPAddress", "userAgent", PRINCIPAL, "errorCode",
+            "eventID", "recipientAccountId"));
+    /**
+     * String columns stored as plain values rather than dictionary encoded.
+     */
+    public static final Set<String> PLAIN_COLUMNS = Collections.singleton("eventID");
+    public static final int ROWS_PER_FILE = 1 << 17;
+    public static final int MAX_OPEN_DAYS = 3;
+    // buffers start this small and double as a day fills up, a day with a few events shouldn't cost a full file
+    private static final int INITIAL_BUFFER_ROWS = 4096;
+    private static final int FILE_MAGIC = 0x43544346;
+    private static final byte LONG_COLUMN = 1;
+    private static final byte STRING_COLUMN = 2;
+    private static final byte PLAIN_STRING_COLUMN = 3;
+    private static final String DAY_PREFIX = "day=";
+    private static final String PART_PREFIX = "part-";
+    private static final String PART_SUFFIX = ".ctc";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    public static Writer openWriter(Path root) throws IOException {
+        Files.createDirectories(root);
+        return new Writer(root);
+    }
+
+    /**
+     * Scans the days from from to to, both inclusive, reading only the given columns. Part files are read on
+     * parallelism threads and every file is handed to consumer as one {@link Batch}, so consumer has to be thread
+     * safe when parallelism is more than 1.
+     *
+     * @return number of events scanned
+     */
+    public static long scan(Path root, LocalDate from, LocalDate to, List<String> columns, int parallelism,
+                            Consumer<Batch> consumer) throws IOException {
+        List<Path> partFiles = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            partFiles.addAll(partFiles(root.resolve(DAY_PREFIX + day)));
+        }
+        ExecutorService scanners = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Integer>> scans = new ArrayList<>();
+            for (Path partFile : partFiles) {
+                scans.add(scanners.submit(() -> {
+                    Batch batch = readPart(partFile, columns);
+                    consumer.accept(batch);
+                    return batch.getRowCount();
+                }));
+            }
+            long rows = 0;
+            for (Future<Integer> scan : scans) {
+                rows += scan.get();
+            }
+            return rows;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + root, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Couldn't scan " + root, e.getCause());
+        } finally {
+            scanners.shutdownNow();
+        }
+    }
+
+    private static Batch readPart(Path partFile, List<String> columns) throws IOException {
+        try (FileChannel channel = FileChannel.open(partFile, StandardOpenOption.READ)) {
+            DataInputStream header = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            if (header.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a CloudTrail column file: " + partFile);
+            }
+            int rowCount = header.readInt();
+            int columnCount = header.readInt();
+            Batch batch = new Batch(partFile, rowCount);
+            for (int column = 0; column < columnCount; column++) {
+                String name = header.readUTF();
+                byte type = header.readByte();
+                long offset = header.readLong();
+                int length = header.readInt();
+                if (!columns.contains(name)) {
+                    continue;
+                }
+                ByteBuffer compressed = ByteBuffer.allocate(length);
+                while (compressed.hasRemaining()) {
+                    if (channel.read(compressed, offset + compressed.position()) < 0) {
+                        throw new IOException("Truncated column " + name + " in " + partFile);
+                    }
+                }
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(
+                        new ByteArrayInputStream(compressed.array())), READ_BUFFER_SIZE))) {
+                    if (type == LONG_COLUMN) {
+                        batch.longColumns.put(name, readLongs(in, rowCount));
+                    } else if (type == PLAIN_STRING_COLUMN) {
+                        batch.stringColumns.put(name, readPlainStrings(in, rowCount));
+                    } else {
+                        batch.stringColumns.put(name, readStrings(in, rowCount));
+                    }
+                }
+            }
+            return batch;
+        }
+    }
+
+    private static long[] readLongs(DataInputStream in, int rowCount) throws IOException {
+        long[] values = new long[rowCount];
+        long previous = 0;
+        for (int row = 0; row < rowCount; row++) {
+            previous += in.readLong();
+            values[row] = previous;
+        }
+        return values;
+    }
+
+    private static StringColumn readStrings(DataInputStream in, int rowCount) throws IOException {
+        String[] dictionary = new String[in.readInt() + 1];
+        for (int id = 1; id < dictionary.length; id++) {
+            dictionary[id] = in.readUTF();
+        }
+        int[] ids = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            ids[row] = in.readInt();
+        }
+        return new StringColumn(dictionary, ids);
+    }
+
+    /**
+     * A plain column is read into the same shape as a dictionary column, with an entry of its own for every row
+     * that has a value, so a {@link Batch} doesn't care how a column was stored.
+     */
+    private static StringColumn readPlainStrings(DataInputStream in, int rowCount) throws IOException {
+        List<String> values = new ArrayList<>(rowCount + 1);
+        values.add(null);
+        int[] ids = new int[rowCount];
+        for (int row = 0; row < rowCount; row++) {
+            if (in.readBoolean()) {
+                values.add(in.readUTF());
+                ids[row] = values.size() - 1;
+            }
+        }
+        return new StringColumn(values.toArray(new String[0]), ids);
+    }
+
+    private static List<Path> partFiles(Path dayDirectory) throws IOException {
+        List<Path> partFiles = new ArrayList<>();
+        if (Files.isDirectory(dayDirectory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dayDirectory, PART_PREFIX + "*" + PART_SUFFIX)) {
+                for (Path file : files) {
+                    partFiles.add(file);
+                }
+            }
+        }
+        Collections.sort(partFiles);
+        return partFiles;
+    }
+
+    /**
+     * The columns a scan asked for from one part file. String columns come as ids into a per file dictionary,
+     * which is what group-bys and filters should work on; {@link #stringAt} turns one back into its value.
+     */
+    public static final class Batch {
+        private final Path file;
+        private final int rowCount;
+        private final Map<String, long[]> longColumns = new HashMap<>();
+        private final Map<String, StringColumn> stringColumns = new HashMap<>();
+
+        private Batch(Path file, int rowCount) {
+            this.file = file;
+            this.rowCount = rowCount;
+        }
+
+        public Path getFile() {
+            return this.file;
+        }
+
+        public int getRowCount() {
+            return this.rowCount;
+        }
+
+        /**
+         * Values of a long column ({@link #EVENT_TIME}).
+         */
+        public long[] longs(String column) {
+            long[] values = this.longColumns.get(column);
+            if (values == null) {
+                throw new IllegalArgumentException("Column not scanned: " + column);
+            }
+            return values;
+        }
+
+        /**
+         * Dictionary ids of a string column, one per row, 0 where the event had no value.
+         */
+        public int[] ids(String column) {
+            return stringColumn(column).ids;
+        }
+
+        /**
+         * Values of a string column by id, index 0 (no value) is null.
+         */
+        public String[] dictionary(String column) {
+            return stringColumn(column).dictionary;
+        }
+
+        /**
+         * Id value has in column in this file, or -1 if no row has it.
+         */
+        public int idOf(String column, String value) {
+            String[] dictionary = stringColumn(column).dictionary;
+            for (int id = 1; id < dictionary.length; id++) {
+                if (dictionary[id].equals(value)) {
+                    return id;
+                }
+            }
+            return value == null ? 0 : -1;
+        }
+
+        public String stringAt(String column, int row) {
+            StringColumn values = stringColumn(column);
+            return values.dictionary[values.ids[row]];
+        }
+
+        private StringColumn stringColumn(String column) {
+            StringColumn values = this.stringColumns.get(column);
+            if (values == null) {
+                throw new IllegalArgumentException("Column not scanned: " + column);
+            }
+            return values;
+        }
+    }
+
+    private static final class StringColumn {
+        private final String[] dictionary;
+        private final int[] ids;
+
+        private StringColumn(String[] dictionary, int[] ids) {
+            this.dictionary = dictionary;
+            this.ids = ids;
+        }
+    }
+
+    /**
+     * Buffers events per day and writes a part file whenever a day has {@link #ROWS_PER_FILE} of them, when the
+     * day is pushed out by a newer one (see {@link #MAX_OPEN_DAYS}), and for every day with events left on close.
+     * Thread safe, so it can be a {@link CloudTrailPipeline}'s sink. Events without a parseable eventTime can't
+     * be put in a day and are counted in {@link #getSkipped}.
+     */
+    public static final class Writer implements CloudTrailPipeline.LogEventSink, AutoCloseable {
+        private final Path root;
+        // in access order, so the first day is the one that went longest without an event
+        private final Map<LocalDate, DayBuffer> days = new LinkedHashMap<>(16, 0.75f, true);
+        private long skipped;
+
+        private Writer(Path root) {
+            this.root = root;
+        }
+
+        @Override
+        public void onEvent(String logKey, int eventIndex, ObjectNode event) {
+            try {
+                add(event);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Couldn't write CloudTrail column file", e);
+            }
+        }
+
+        public synchronized void add(JsonNode event) throws IOException {
+            long eventTime;
+            try {
+                eventTime = Instant.parse(event.path(EVENT_TIME).asText()).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                this.skipped++;
+                return;
+            }
+            LocalDate day = Instant.ofEpochMilli(eventTime).atZone(ZoneOffset.UTC).toLocalDate();
+            DayBuffer buffer = this.days.get(day);
+            if (buffer == null) {
+                Path directory = this.root.resolve(DAY_PREFIX + day);
+                if (this.days.size() < MAX_OPEN_DAYS) {
+                    buffer = new DayBuffer(directory);
+                } else {
+                    // a late event for the day written out here just starts another part file of that day
+                    Iterator<DayBuffer> idlest = this.days.values().iterator();
+                    buffer = idlest.next();
+                    idlest.remove();
+                    buffer.flush();
+                    buffer.reuseFor(directory);
+                }
+                this.days.put(day, buffer);
+            }
+            buffer.add(eventTime, event);
+            if (buffer.rowCount == ROWS_PER_FILE) {
+                buffer.flush();
+            }
+        }
+
+        public synchronized long getSkipped() {
+            return this.skipped;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            for (DayBuffer buffer : this.days.values()) {
+                buffer.flush();
+            }
+            this.days.clear();
+        }
+    }
+
+    /**
+     * Events of one day not written yet, already split into columns. Dictionary columns keep an id per row,
+     * plain columns the value itself.
+     */
+    private static final class DayBuffer {
+        private Path directory;
+        private long[] eventTimes = new long[INITIAL_BUFFER_ROWS];
+        // per column, null for plain columns
+        private final int[][] stringIds = new int[STRING_COLUMNS.size()][];
+        // per column, null for dictionary columns
+        private final String[][] plainValues = new String[STRING_COLUMNS.size()][];
+        private CloudTrailDictionary[] dictionaries = newDictionaries();
+        private int rowCount;
+        private int nextPart = -1;
+
+        private DayBuffer(Path directory) {
+            this.directory = directory;
+            for (int column = 0; column < STRING_COLUMNS.size(); column++) {
+                if (PLAIN_COLUMNS.contains(STRING_COLUMNS.get(column))) {
+                    this.plainValues[column] = new String[INITIAL_BUFFER_ROWS];
+                } else {
+                    this.stringIds[column] = new int[INITIAL_BUFFER_ROWS];
+                }
+            }
+        }
+
+        /**
+         * Takes the buffer over for another day, keeping the arrays it has grown. Only for a flushed buffer.
+         */
+        private void reuseFor(Path directory) {
+            this.directory = directory;
+            this.nextPart = -1;
+        }
+
+        private void add(long eventTime, JsonNode event) {
+            if (this.rowCount == this.eventTimes.length) {
+                grow();
+            }
+            this.eventTimes[this.rowCount] = eventTime;
+            for (int column = 0; column < STRING_COLUMNS.size(); column++) {
+                String name = STRING_COLUMNS.get(column);
+                String value = PRINCIPAL.equals(name)
+                        ? CloudTrailEventIndex.principalOf(event)
+                        : CloudTrailEventIndex.textOf(event, name);
+                if (this.plainValues[column] != null) {
+                    this.plainValues[column][this.rowCount] = value;
+                } else {
+                    this.stringIds[column][this.rowCount] = this.dictionaries[column].idOf(value);
+                }
+            }
+            this.rowCount++;
+        }
+
+        private void grow() {
+            int capacity = Math.min(ROWS_PER_FILE, this.eventTimes.length * 2);
+            this.eventTimes = Arrays.copyOf(this.eventTimes, capacity);
+            for (int column = 0; column < STRING_COLUMNS.size(); column++) {
+                if (this.plainValues[column] != null) {
+                    this.plainValues[column] = Arrays.copyOf(this.plainValues[column], capacity);
+                } else {
+                    this.stringIds[column] = Arrays.copyOf(this.stringIds[column], capacity);
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            if (this.rowCount == 0) {
+                return;
+            }
+            Files.createDirectories(this.directory);
+            if (this.nextPart < 0) {
+                // carry on numbering after the parts earlier exports left in this day
+                this.nextPart = 0;
+                for (Path existing : partFiles(this.directory)) {
+                    String name = existing.getFileName().toString();
+                    this.nextPart = Math.max(this.nextPart, Integer.parseInt(name.substring(PART_PREFIX.length(),
+                            name.length() - PART_SUFFIX.length())) + 1);
+                }
+            }
+
+            List<String> names = new ArrayList<>();
+            List<byte[]> chunks = new ArrayList<>();
+            names.add(EVENT_TIME);
+            chunks.add(compress(out -> {
+                long previous = 0;
+                for (int row = 0; row < this.rowCount; row++) {
+                    out.writeLong(this.eventTimes[row] - previous);
+                    previous = this.eventTimes[row];
+                }
+            }));
+            List<Byte> types = new ArrayList<>();
+            types.add(LONG_COLUMN);
+            for (int column = 0; column < STRING_COLUMNS.size(); column++) {
+                names.add(STRING_COLUMNS.get(column));
+                String[] values = this.plainValues[column];
+                if (values != null) {
+                    types.add(PLAIN_STRING_COLUMN);
+                    chunks.add(compress(out -> {
+                        for (int row = 0; row < this.rowCount; row++) {
+                            out.writeBoolean(values[row] != null);
+                            if (values[row] != null) {
+                                out.writeUTF(values[row]);
+                            }
+                        }
+                    }));
+                    continue;
+                }
+                CloudTrailDictionary dictionary = this.dictionaries[column];
+                int[] ids = this.stringIds[column];
+                types.add(STRING_COLUMN);
+                chunks.add(compress(out -> {
+                    out.writeInt(dictionary.size());
+                    for (int id = 1; id <= dictionary.size(); id++) {
+                        out.writeUTF(dictionary.valueOf(id));
+                    }
+                    for (int row = 0; row < this.rowCount; row++) {
+                        out.writeInt(ids[row]);
+                    }
+                }));
+            }
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(FILE_MAGIC);
+            headerOut.writeInt(this.rowCount);
+            headerOut.writeInt(names.size());
+            // header size is known before offsets are, every entry is name (ASCII, so one byte a char, after a
+            // two byte length), type, offset and length
+            int headerSize = 12;
+            for (String name : names) {
+                headerSize += 2 + name.length() + 1 + 8 + 4;
+            }
+            long offset = headerSize;
+            for (int column = 0; column < names.size(); column++) {
+                headerOut.writeUTF(names.get(column));
+                headerOut.writeByte(types.get(column));
+                headerOut.writeLong(offset);
+                headerOut.writeInt(chunks.get(column).length);
+                offset += chunks.get(column).length;
+            }
+            headerOut.flush();
+
+            Path partFile = this.directory.resolve(String.format("%s%05d%s", PART_PREFIX, this.nextPart++, PART_SUFFIX));
+            Path temporaryFile = this.directory.resolve(partFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(channel, header.toByteArray());
+                for (byte[] chunk : chunks) {
+                    writeFully(channel, chunk);
+                }
+                channel.force(true);
+            }
+            Files.move(temporaryFile, partFile, StandardCopyOption.ATOMIC_MOVE);
+
+            // plain values are dropped so the strings don't outlive the part file they were written to
+            for (String[] values : this.plainValues) {
+                if (values != null) {
+                    Arrays.fill(values, 0, this.rowCount, null);
+                }
+            }
+            this.rowCount = 0;
+            this.dictionaries = newDictionaries();
+        }
+
+        private static CloudTrailDictionary[] newDictionaries() {
+            CloudTrailDictionary[] dictionaries = new CloudTrailDictionary[STRING_COLUMNS.size()];
+            for (int column = 0; column < dictionaries.length; column++) {
+                if (!PLAIN_COLUMNS.contains(STRING_COLUMNS.get(column))) {
+                    dictionaries[column] = new CloudTrailDictionary();
+                }
+            }
+            return dictionaries;
+        }
+
+        private static byte[] compress(ColumnEncoder encoder) throws IOException {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(compressed))) {
+                encoder.encode(out);
+            }
+            return compressed.toByteArray();
+        }
+
+        private static void writeFully(FileChannel channel, byte[] bytes) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface ColumnEncoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+}
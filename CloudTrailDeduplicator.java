@@ -0,0 +1,623 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops CloudTrail events that have already been seen, by eventID. CloudTrail can deliver an event in more than
+ * one log file, and reprocessing overlapping ranges sees the same logs again, so without this events are
+ * counted twice.
+ *
+ * Every eventID (a UUID, kept as two longs) goes into a Bloom filter in a memory-mapped file sized up front
+ * for the expected number of ids, so it uses the same amount of memory whether it has seen a thousand ids or
+ * a billion, and none of it is on the heap. Only when the filter says "maybe seen" is the id checked exactly
+ * against every id seen so far. Those are kept in an off-heap hash table of recent ids that is written out as a
+ * sorted run file whenever it gets half full, and lookups binary search the memory-mapped runs. Small runs are
+ * merged as they pile up so a lookup only has to search a handful of them.
+ *
+ * The parse threads of a {@link CloudTrailPipeline} all call {@link #firstSeen}, so the recent id table is split
+ * into {@link #RECENT_ID_STRIPES} stripes by id hash, each with its own lock, and a given id is always checked
+ * and added under the lock of its stripe. A stripe that gets half full swaps in its spare table and sorts and
+ * writes the full one out after letting go of the lock; lookups keep searching the table being written until
+ * its run is in place.
+ *
+ * Everything lives in one directory and survives restarts, so a rerun over the same range skips what the last
+ * run already processed.
+ * <pre>
+ * try (CloudTrailDeduplicator deduplicator = CloudTrailDeduplicator.open(directory, 100_000_000, 0.01)) {
+ *     // events reach sink at most once
+ *     CloudTrailPipeline.LogEventSink dedupedSink = deduplicator.filter(sink);
+ * }
+ * </pre>
+ */
+public class CloudTrailDeduplicator implements AutoCloseable {
+    private static final String BLOOM_FILE = "bloom.bits";
+    private static final String RUN_PREFIX = "run-";
+    private static final String RUN_SUFFIX = ".ids";
+    private static final int BLOOM_MAGIC = 0x43544246;
+    // magic, hash count, bit count
+    private static final int BLOOM_HEADER_SIZE = 16;
+    // maps are limited to 2GB, so the bits are mapped in 1GB pieces
+    private static final long BLOOM_SEGMENT_BYTES = 1L << 30;
+    private static final int ID_SIZE = 16;
+    private static final int RECENT_ID_SLOTS = 1 << 20;
+    private static final int STRIPE_BITS = 4;
+    private static final int RECENT_ID_STRIPES = 1 << STRIPE_BITS;
+    private static final int STRIPE_SLOTS = RECENT_ID_SLOTS / RECENT_ID_STRIPES;
+    // locks for setting Bloom filter words, ids of different stripes can set bits in the same word
+    private static final int BLOOM_LOCKS = 256;
+    private static final int MAX_RUNS = 16;
+    private static final long MAX_RUN_IDS = (1L << 30) / ID_SIZE;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final MappedByteBuffer[] bloomSegments;
+    private final long bloomBits;
+    private final int hashCount;
+    private final Object[] bloomLocks = new Object[BLOOM_LOCKS];
+    private final Stripe[] stripes = new Stripe[RECENT_ID_STRIPES];
+    // searched without a lock, runLock is held to add, merge and name runs
+    private final List<Run> runs = new CopyOnWriteArrayList<>();
+    private final Object runLock = new Object();
+    private int nextRun;
+    private final LongAdder duplicates = new LongAdder();
+
+    private CloudTrailDeduplicator(Path directory, MappedByteBuffer[] bloomSegments, long bloomBits, int hashCount) {
+        this.directory = directory;
+        this.bloomSegments = bloomSegments;
+        this.bloomBits = bloomBits;
+        this.hashCount = hashCount;
+        for (int lock = 0; lock < BLOOM_LOCKS; lock++) {
+            this.bloomLocks[lock] = new Object();
+        }
+        for (int stripe = 0; stripe < RECENT_ID_STRIPES; stripe++) {
+            this.stripes[stripe] = new Stripe();
+        }
+    }
+
+    /**
+     * Opens the deduplicator in directory, creating it sized for expectedIds ids at the given false positive
+     * rate if it doesn't exist. A Bloom filter that already exists keeps the size it was created with.
+     */
+    public static CloudTrailDeduplicator open(Path directory, long expectedIds, double falsePositiveRate)
+            throws IOException {
+        Files.createDirectories(directory);
+        Path bloomFile = directory.resolve(BLOOM_FILE);
+        long bloomBits;
+        int hashCount;
+        try (FileChannel channel = FileChannel.open(bloomFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            if (channel.size() == 0) {
+                // optimal Bloom filter parameters: m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 hashes
+                long bits = (long) Math.ceil(-expectedIds * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+                bloomBits = Math.max(64, (bits + 63) / 64 * 64);
+                hashCount = Math.max(1, (int) Math.round((double) bloomBits / expectedIds * Math.log(2)));
+                ByteBuffer header = ByteBuffer.allocate(BLOOM_HEADER_SIZE)
+                        .putInt(BLOOM_MAGIC)
+                        .putInt(hashCount)
+                        .putLong(bloomBits);
+                header.flip();
+                channel.write(header, 0);
+                // extends the (sparse) file to its full size up front
+                channel.write(ByteBuffer.allocate(1), BLOOM_HEADER_SIZE + bloomBits / 8 - 1);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(BLOOM_HEADER_SIZE);
+                channel.read(header, 0);
+                header.flip();
+                if (header.getInt() != BLOOM_MAGIC) {
+                    throw new IOException("Not a CloudTrail dedup Bloom filter: " + bloomFile);
+                }
+                hashCount = header.getInt();
+                bloomBits = header.getLong();
+            }
+            long bloomBytes = bloomBits / 8;
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((bloomBytes + BLOOM_SEGMENT_BYTES - 1)
+                    / BLOOM_SEGMENT_BYTES)];
+            for (int segment = 0; segment < segments.length; segment++) {
+                long offset = segment * BLOOM_SEGMENT_BYTES;
+                segments[segment] = channel.map(FileChannel.MapMode.READ_WRITE, BLOOM_HEADER_SIZE + offset,
+                        Math.min(BLOOM_SEGMENT_BYTES, bloomBytes - offset));
+            }
+
+            CloudTrailDeduplicator deduplicator = new CloudTrailDeduplicator(directory, segments, bloomBits, hashCount);
+            deduplicator.openRuns();
+            return deduplicator;
+        }
+    }
+
+    /**
+     * Sink that passes an event on to downstream only the first time its eventID is seen. Events without an
+     * eventID are always passed on.
+     */
+    public CloudTrailPipeline.LogEventSink filter(CloudTrailPipeline.LogEventSink downstream) {
+        return new CloudTrailPipeline.LogEventSink() {
+            @Override
+            public void onEvent(String logKey, int eventIndex, ObjectNode event) {
+                JsonNode eventId = event.get("eventID");
+                if (eventId == null || !eventId.isTextual() || firstSeen(eventId.asText())) {
+                    downstream.onEvent(logKey, eventIndex, event);
+                }
+            }
+
+            @Override
+            public void onLogComplete(String logKey) {
+                downstream.onLogComplete(logKey);
+            }
+        };
+    }
+
+    /**
+     * Records eventId as seen. Safe to call from several threads.
+     *
+     * @return true the first time eventId is passed in, false every time after that
+     */
+    public boolean firstSeen(String eventId) {
+        long high;
+        long low;
+        if (isUuid(eventId)) {
+            high = Long.parseUnsignedLong(eventId.substring(0, 8) + eventId.substring(9, 13) + eventId.substring(14, 18), 16);
+            low = Long.parseUnsignedLong(eventId.substring(19, 23) + eventId.substring(24, 36), 16);
+        } else {
+            // not expected from CloudTrail, but any string still gets a 128 bit key
+            high = mix(eventId.hashCode());
+            low = 0;
+            for (int i = 0; i < eventId.length(); i++) {
+                low = low * 31 + eventId.charAt(i);
+            }
+            low = mix(low);
+        }
+
+        // top bits pick the stripe, the low ones the slot in it
+        Stripe stripe = this.stripes[(int) (mix(high ^ low) >>> (64 - STRIPE_BITS))];
+        RecentIds full;
+        synchronized (stripe) {
+            if (mightContain(high, low) && contains(stripe, high, low)) {
+                this.duplicates.increment();
+                return false;
+            }
+            addToBloomFilter(high, low);
+            full = stripe.add(high, low);
+        }
+        if (full != null) {
+            try {
+                writeRun(stripe, full);
+            } catch (IOException e) {
+                throw new IllegalStateException("Couldn't write CloudTrail dedup run", e);
+            }
+        }
+        return true;
+    }
+
+    public long getDuplicates() {
+        return this.duplicates.sum();
+    }
+
+    private static boolean isUuid(String id) {
+        return id.length() == 36 && id.charAt(8) == '-' && id.charAt(13) == '-' && id.charAt(18) == '-'
+                && id.charAt(23) == '-';
+    }
+
+    private boolean mightContain(long high, long low) {
+        long hash1 = mix(high ^ mix(low));
+        long hash2 = mix(low + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < this.hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, this.bloomBits);
+            if ((bloomWord(bit) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToBloomFilter(long high, long low) {
+        long hash1 = mix(high ^ mix(low));
+        long hash2 = mix(low + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < this.hashCount; i++) {
+            long bit = Long.remainderUnsigned(hash1 + i * hash2, this.bloomBits);
+            long byteOffset = (bit >>> 6) * 8;
+            MappedByteBuffer segment = this.bloomSegments[(int) (byteOffset / BLOOM_SEGMENT_BYTES)];
+            int offset = (int) (byteOffset % BLOOM_SEGMENT_BYTES);
+            synchronized (this.bloomLocks[(int) (bit >>> 6) & (BLOOM_LOCKS - 1)]) {
+                segment.putLong(offset, segment.getLong(offset) | (1L << (bit & 63)));
+            }
+        }
+    }
+
+    private long bloomWord(long bit) {
+        long byteOffset = (bit >>> 6) * 8;
+        return this.bloomSegments[(int) (byteOffset / BLOOM_SEGMENT_BYTES)].getLong((int) (byteOffset % BLOOM_SEGMENT_BYTES));
+    }
+
+    /**
+     * The exact check, only done for ids the Bloom filter thinks it may have seen. Called holding the lock of
+     * stripe, the one the id belongs to.
+     */
+    private boolean contains(Stripe stripe, long high, long low) {
+        if (stripe.recentIds.contains(high, low)
+                || (stripe.writingIds != null && stripe.writingIds.contains(high, low))) {
+            return true;
+        }
+        for (Run run : this.runs) {
+            if (run.contains(high, low)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the ids of full (a table stripe swapped out) as a sorted run, then hands the emptied table back to
+     * stripe as its spare. Merges runs if there are too many. Called without holding the stripe's lock.
+     */
+    private void writeRun(Stripe stripe, RecentIds full) throws IOException {
+        long[] ids = full.sortedIds();
+        if (ids.length > 0) {
+            synchronized (this.runLock) {
+                Path runFile = nextRunFile();
+                Path temporaryFile = this.directory.resolve(runFile.getFileName() + ".tmp");
+                try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+                    for (long value : ids) {
+                        if (!out.hasRemaining()) {
+                            writeFully(channel, out);
+                        }
+                        out.putLong(value);
+                    }
+                    writeFully(channel, out);
+                    channel.force(true);
+                }
+                Files.move(temporaryFile, runFile, StandardCopyOption.ATOMIC_MOVE);
+                this.runs.add(Run.open(runFile));
+
+                if (this.runs.size() > MAX_RUNS) {
+                    compactRuns();
+                }
+            }
+        }
+        synchronized (stripe) {
+            // the ids are in a run now
+            stripe.writingIds = null;
+        }
+        full.clear();
+        synchronized (stripe) {
+            stripe.spareIds = full;
+            stripe.notifyAll();
+        }
+    }
+
+    /**
+     * Merges the smallest runs into one, as many as fit in a single run file, so lookups search fewer runs.
+     * Called holding runLock.
+     */
+    private void compactRuns() throws IOException {
+        List<Run> bySize = new ArrayList<>(this.runs);
+        bySize.sort(Comparator.comparingLong(run -> run.count));
+        List<Run> merging = new ArrayList<>();
+        long mergedCount = 0;
+        for (Run run : bySize) {
+            if (mergedCount + run.count > MAX_RUN_IDS) {
+                break;
+            }
+            merging.add(run);
+            mergedCount += run.count;
+        }
+        if (merging.size() < 2) {
+            // every run is already as big as a run gets
+            return;
+        }
+
+        Path runFile = nextRunFile();
+        Path temporaryFile = this.directory.resolve(runFile.getFileName() + ".tmp");
+        long[] positions = new long[merging.size()];
+        try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            while (true) {
+                int smallest = -1;
+                for (int i = 0; i < merging.size(); i++) {
+                    if (positions[i] < merging.get(i).count && (smallest < 0 || compareIds(
+                            merging.get(i).high(positions[i]), merging.get(i).low(positions[i]),
+                            merging.get(smallest).high(positions[smallest]),
+                            merging.get(smallest).low(positions[smallest])) < 0)) {
+                        smallest = i;
+                    }
+                }
+                if (smallest < 0) {
+                    break;
+                }
+                if (out.remaining() < ID_SIZE) {
+                    writeFully(channel, out);
+                }
+                Run run = merging.get(smallest);
+                out.putLong(run.high(positions[smallest])).putLong(run.low(positions[smallest]));
+                positions[smallest]++;
+            }
+            writeFully(channel, out);
+            channel.force(true);
+        }
+        Files.move(temporaryFile, runFile, StandardCopyOption.ATOMIC_MOVE);
+        // the merged run goes in first, so lookups running meanwhile find every id in one run or the other
+        this.runs.add(Run.open(runFile));
+        this.runs.removeAll(merging);
+        for (Run run : merging) {
+            Files.delete(run.file);
+        }
+    }
+
+    private void openRuns() throws IOException {
+        List<Path> runFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, RUN_PREFIX + "*" + RUN_SUFFIX)) {
+            for (Path file : files) {
+                runFiles.add(file);
+            }
+        }
+        Collections.sort(runFiles);
+        for (Path runFile : runFiles) {
+            this.runs.add(Run.open(runFile));
+            String name = runFile.getFileName().toString();
+            this.nextRun = Math.max(this.nextRun, Integer.parseInt(name.substring(RUN_PREFIX.length(),
+                    name.length() - RUN_SUFFIX.length())) + 1);
+        }
+    }
+
+    private Path nextRunFile() {
+        return this.directory.resolve(String.format("%s%08d%s", RUN_PREFIX, this.nextRun++, RUN_SUFFIX));
+    }
+
+    /**
+     * Writes out the ids not in a run yet and the Bloom filter, so the next run picks up where this one stopped.
+     */
+    @Override
+    public void close() throws IOException {
+        for (Stripe stripe : this.stripes) {
+            RecentIds full;
+            synchronized (stripe) {
+                full = stripe.swap();
+            }
+            writeRun(stripe, full);
+        }
+        for (MappedByteBuffer segment : this.bloomSegments) {
+            segment.force();
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static int compareIds(long high1, long low1, long high2, long low2) {
+        int byHigh = Long.compare(high1, high2);
+        return byHigh != 0 ? byHigh : Long.compare(low1, low2);
+    }
+
+    /**
+     * Quicksort of the {high, low} pairs in ids[from * 2 .. to * 2 + 1].
+     */
+    private static void sortIds(long[] ids, int from, int to) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            long pivotHigh = ids[middle * 2];
+            long pivotLow = ids[middle * 2 + 1];
+            int left = from;
+            int right = to;
+            while (left <= right) {
+                while (compareIds(ids[left * 2], ids[left * 2 + 1], pivotHigh, pivotLow) < 0) {
+                    left++;
+                }
+                while (compareIds(ids[right * 2], ids[right * 2 + 1], pivotHigh, pivotLow) > 0) {
+                    right--;
+                }
+                if (left <= right) {
+                    swap(ids, left * 2, right * 2);
+                    swap(ids, left * 2 + 1, right * 2 + 1);
+                    left++;
+                    right--;
+                }
+            }
+            // recurse into the smaller half, loop on the bigger one, so the stack stays shallow
+            if (right - from < to - left) {
+                sortIds(ids, from, right);
+                from = left;
+            } else {
+                sortIds(ids, left, to);
+                to = right;
+            }
+        }
+    }
+
+    private static void swap(long[] values, int i, int j) {
+        long value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+    private static long mix(long value) {
+        // finalizer of MurmurHash3's 64 bit hash
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * One stripe of the recent ids, its monitor guards the fields.
+     */
+    private static final class Stripe {
+        private RecentIds recentIds = new RecentIds();
+        // table handed to writeRun, still searched until its run is in place
+        private RecentIds writingIds;
+        private RecentIds spareIds = new RecentIds();
+
+        /**
+         * Adds an id that isn't in the stripe yet.
+         *
+         * @return the full table swapped out, for the caller to write once it has let go of the lock, or null
+         */
+        RecentIds add(long high, long low) {
+            this.recentIds.add(high, low);
+            return this.recentIds.size() * 2 >= STRIPE_SLOTS ? swap() : null;
+        }
+
+        /**
+         * Swaps the spare table in, waiting for it if the last table swapped out is still being written.
+         */
+        RecentIds swap() {
+            while (this.spareIds == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for a CloudTrail dedup run to be written", e);
+                }
+            }
+            RecentIds full = this.recentIds;
+            this.recentIds = this.spareIds;
+            this.spareIds = null;
+            this.writingIds = full;
+            return full;
+        }
+    }
+
+    /**
+     * Off-heap open addressing table of {high, low} ids not yet written to a run, all zero is an empty slot.
+     */
+    private static final class RecentIds {
+        private final ByteBuffer slots = ByteBuffer.allocateDirect(STRIPE_SLOTS * ID_SIZE);
+        private int count;
+        private boolean zeroId;
+
+        boolean contains(long high, long low) {
+            if (high == 0 && low == 0) {
+                return this.zeroId;
+            }
+            return findSlot(high, low) >= 0;
+        }
+
+        void add(long high, long low) {
+            if (high == 0 && low == 0) {
+                this.zeroId = true;
+            } else {
+                int slot = -findSlot(high, low) - 1;
+                this.slots.putLong(slot * ID_SIZE, high);
+                this.slots.putLong(slot * ID_SIZE + 8, low);
+                this.count++;
+            }
+        }
+
+        int size() {
+            return this.count + (this.zeroId ? 1 : 0);
+        }
+
+        /**
+         * @return slot holding the id, or -(empty slot it would go in) - 1
+         */
+        private int findSlot(long high, long low) {
+            int mask = STRIPE_SLOTS - 1;
+            for (int slot = (int) mix(high ^ low) & mask; ; slot = (slot + 1) & mask) {
+                long slotHigh = this.slots.getLong(slot * ID_SIZE);
+                long slotLow = this.slots.getLong(slot * ID_SIZE + 8);
+                if (slotHigh == high && slotLow == low) {
+                    return slot;
+                }
+                if (slotHigh == 0 && slotLow == 0) {
+                    return -slot - 1;
+                }
+            }
+        }
+
+        /**
+         * @return the ids as sorted {high, low} pairs
+         */
+        long[] sortedIds() {
+            int size = size();
+            long[] ids = new long[size * 2];
+            int id = this.zeroId ? 2 : 0;
+            for (int slot = 0; slot < STRIPE_SLOTS; slot++) {
+                long high = this.slots.getLong(slot * ID_SIZE);
+                long low = this.slots.getLong(slot * ID_SIZE + 8);
+                if (high != 0 || low != 0) {
+                    ids[id++] = high;
+                    ids[id++] = low;
+                }
+            }
+            sortIds(ids, 0, size - 1);
+            return ids;
+        }
+
+        void clear() {
+            for (int slot = 0; slot < STRIPE_SLOTS * ID_SIZE; slot += 8) {
+                this.slots.putLong(slot, 0);
+            }
+            this.count = 0;
+            this.zeroId = false;
+        }
+    }
+
+    /**
+     * A sorted run file of ids, memory mapped and binary searched.
+     */
+    private static final class Run {
+        private final Path file;
+        private final MappedByteBuffer ids;
+        private final long count;
+
+        private Run(Path file, MappedByteBuffer ids) {
+            this.file = file;
+            this.ids = ids;
+            this.count = ids.capacity() / ID_SIZE;
+        }
+
+        static Run open(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return new Run(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        long high(long position) {
+            return this.ids.getLong((int) (position * ID_SIZE));
+        }
+
+        long low(long position) {
+            return this.ids.getLong((int) (position * ID_SIZE + 8));
+        }
+
+        boolean contains(long high, long low) {
+            long from = 0;
+            long to = this.count - 1;
+            while (from <= to) {
+                long middle = (from + to) >>> 1;
+                int comparison = compareIds(high(middle), low(middle), high, low);
+                if (comparison == 0) {
+                    return true;
+                }
+                if (comparison < 0) {
+                    from = middle + 1;
+                } else {
+                    to = middle - 1;
+                }
+            }
+            return false;
+        }
+    }
+}
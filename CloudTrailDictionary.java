@@ -0,0 +1,151 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * Maps the strings that repeat across CloudTrail events (event sources, event names, principals, error codes,
+ * log keys) to small dense int ids, so indexes and counters can store and compare ints instead of strings.
+ *
+ * Lookups use an open addressing table of ints rather than a HashMap, so there is no entry object or boxed id
+ * per string. Id 0 is reserved for "no value" (a missing field) and is never handed out.
+ *
+ * Not thread safe, callers that share a dictionary between threads have to synchronize on it.
+ */
+public class CloudTrailDictionary {
+    public static final int NONE = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // slot -> id, 0 means the slot is empty
+    private int[] slots = new int[INITIAL_CAPACITY];
+    // id -> value and id -> hash, index 0 is unused
+    private String[] values = new String[INITIAL_CAPACITY / 2];
+    private int[] hashes = new int[INITIAL_CAPACITY / 2];
+    private int size;
+
+    /**
+     * Id of value, adding it if it hasn't been seen before. A null value is {@link #NONE}.
+     */
+    public int idOf(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        int hash = hash(value);
+        int mask = this.slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = this.slots[slot];
+            if (id == NONE) {
+                return add(slot, value, hash);
+            }
+            if (this.hashes[id] == hash && this.values[id].equals(value)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Id of value without adding it: -1 if the dictionary has never seen value, {@link #NONE} for null.
+     */
+    public int find(String value) {
+        if (value == null) {
+            return NONE;
+        }
+        int hash = hash(value);
+        int mask = this.slots.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int id = this.slots[slot];
+            if (id == NONE) {
+                return -1;
+            }
+            if (this.hashes[id] == hash && this.values[id].equals(value)) {
+                return id;
+            }
+        }
+    }
+
+    /**
+     * The string for id, null for {@link #NONE}.
+     */
+    public String valueOf(int id) {
+        if (id < 0 || id > this.size) {
+            throw new IllegalArgumentException("Unknown dictionary id " + id);
+        }
+        return this.values[id];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    private int add(int slot, String value, int hash) {
+        int id = ++this.size;
+        if (id == this.values.length) {
+            this.values = Arrays.copyOf(this.values, id * 2);
+            this.hashes = Arrays.copyOf(this.hashes, id * 2);
+        }
+        this.values[id] = value;
+        this.hashes[id] = hash;
+        this.slots[slot] = id;
+        // keep the table at most half full so probe sequences stay short
+        if (this.size * 2 > this.slots.length) {
+            rehash(this.slots.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(int capacity) {
+        int[] rehashed = new int[capacity];
+        int mask = capacity - 1;
+        for (int id = 1; id <= this.size; id++) {
+            int slot = this.hashes[id] & mask;
+            while (rehashed[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = id;
+        }
+        this.slots = rehashed;
+    }
+
+    private static int hash(String value) {
+        // spread the bits of String.hashCode, the table index only uses the low ones
+        int hash = value.hashCode() * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Reads a dictionary written by {@link #save}, or returns an empty one if file doesn't exist.
+     */
+    public static CloudTrailDictionary load(Path file) throws IOException {
+        CloudTrailDictionary dictionary = new CloudTrailDictionary();
+        if (Files.exists(file)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                int count = in.readInt();
+                for (int id = 1; id <= count; id++) {
+                    dictionary.idOf(in.readUTF());
+                }
+            }
+        }
+        return dictionary;
+    }
+
+    /**
+     * Writes every value in id order, so loading it again hands out the same ids. The file is replaced
+     * atomically, readers never see a half written dictionary.
+     */
+    public void save(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Path temporaryFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+            out.writeInt(this.size);
+            for (int id = 1; id <= this.size; id++) {
+                out.writeUTF(this.values[id]);
+            }
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,397 @@
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * A local index of CloudTrail events, so questions like "who called DeleteBucket last month" or "which
+ * principals got AccessDenied" can be answered from disk instead of downloading and parsing the trail again.
+ *
+ * The index is a directory of segment files plus a {@link CloudTrailDictionary}. Every event is a fixed 32 byte
+ * record of ints and a long: event time, ids of event source, event name, principal, error code and log key,
+ * and the event's position in the log's Records array, which is enough to fetch the full event again if it
+ * is needed. Records in a segment are sorted by event time, so a query memory maps each segment, skips the
+ * ones outside its time range and binary searches to the first record in range.
+ *
+ * Building the index while the logs are processed:
+ * <pre>
+ * try (CloudTrailEventIndex.Writer indexWriter = CloudTrailEventIndex.openWriter(indexDirectory)) {
+ *     // pass indexWriter (or something that calls indexWriter.add) to a CloudTrailPipeline as its sink
+ * }
+ * </pre>
+ * and querying it later:
+ * <pre>
+ * CloudTrailEventIndex index = CloudTrailEventIndex.open(indexDirectory);
+ * index.query(from, to, null, null, null, "AccessDenied", event -> System.out.println(event));
+ * </pre>
+ */
+public class CloudTrailEventIndex {
+    public static final String DICTIONARY_FILE = "dictionary.dat";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".idx";
+    private static final int SEGMENT_MAGIC = 0x43544958;
+    // magic, record count, min event time, max event time, padded to one record
+    private static final int HEADER_SIZE = 32;
+    private static final int RECORD_SIZE = 32;
+    private static final int TIME = 0;
+    private static final int SOURCE = 8;
+    private static final int NAME = 12;
+    private static final int PRINCIPAL = 16;
+    private static final int ERROR_CODE = 20;
+    private static final int LOG_KEY = 24;
+    private static final int EVENT_INDEX = 28;
+    private static final int SEGMENT_RECORDS = 1 << 18;
+
+    private final CloudTrailDictionary dictionary;
+    private final List<MappedByteBuffer> segments;
+
+    private CloudTrailEventIndex(CloudTrailDictionary dictionary, List<MappedByteBuffer> segments) {
+        this.dictionary = dictionary;
+        this.segments = segments;
+    }
+
+    /**
+     * Opens the index in directory for querying. Segments written after this are not seen, open it again to
+     * pick them up.
+     */
+    public static CloudTrailEventIndex open(Path directory) throws IOException {
+        CloudTrailDictionary dictionary = CloudTrailDictionary.load(directory.resolve(DICTIONARY_FILE));
+        List<MappedByteBuffer> segments = new ArrayList<>();
+        for (Path segmentFile : segmentFiles(directory)) {
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (segment.getInt(0) != SEGMENT_MAGIC) {
+                    throw new IOException("Not a CloudTrail index segment: " + segmentFile);
+                }
+                segments.add(segment);
+            }
+        }
+        return new CloudTrailEventIndex(dictionary, segments);
+    }
+
+    /**
+     * Opens a writer that adds new segments to the index in directory, creating it if needed.
+     */
+    public static Writer openWriter(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> existing = segmentFiles(directory);
+        int nextSegment = 0;
+        if (!existing.isEmpty()) {
+            String lastSegment = existing.get(existing.size() - 1).getFileName().toString();
+            nextSegment = Integer.parseInt(lastSegment.substring(SEGMENT_PREFIX.length(),
+                    lastSegment.length() - SEGMENT_SUFFIX.length())) + 1;
+        }
+        return new Writer(directory, CloudTrailDictionary.load(directory.resolve(DICTIONARY_FILE)), nextSegment);
+    }
+
+    /**
+     * Passes every indexed event with fromMillis &lt;= eventTime &lt;= toMillis that matches all of the given
+     * values to consumer. A null value matches anything, so query(from, to, null, "DeleteBucket", null, null,
+     * ...) finds every DeleteBucket call in the range. Events come back in time order within a segment, but
+     * segments are visited one after another.
+     *
+     * @return number of matching events
+     */
+    public long query(long fromMillis, long toMillis, String eventSource, String eventName, String principal,
+                      String errorCode, Consumer<IndexedEvent> consumer) {
+        int sourceId = idToMatch(eventSource);
+        int nameId = idToMatch(eventName);
+        int principalId = idToMatch(principal);
+        int errorCodeId = idToMatch(errorCode);
+        if (sourceId == -1 || nameId == -1 || principalId == -1 || errorCodeId == -1) {
+            // a value the index has never seen can't match anything
+            return 0;
+        }
+
+        long matches = 0;
+        for (MappedByteBuffer segment : this.segments) {
+            int recordCount = segment.getInt(4);
+            if (recordCount == 0 || segment.getLong(8) > toMillis || segment.getLong(16) < fromMillis) {
+                continue;
+            }
+            for (int record = firstRecordAtOrAfter(segment, recordCount, fromMillis); record < recordCount; record++) {
+                int offset = HEADER_SIZE + record * RECORD_SIZE;
+                long eventTime = segment.getLong(offset + TIME);
+                if (eventTime > toMillis) {
+                    break;
+                }
+                if (matches(segment, offset + SOURCE, sourceId) && matches(segment, offset + NAME, nameId)
+                        && matches(segment, offset + PRINCIPAL, principalId)
+                        && matches(segment, offset + ERROR_CODE, errorCodeId)) {
+                    matches++;
+                    consumer.accept(toEvent(segment, offset));
+                }
+            }
+        }
+        return matches;
+    }
+
+    private int idToMatch(String value) {
+        // NONE (0) stands for "any value" in a query, -1 for a value that isn't in the index
+        return value == null ? CloudTrailDictionary.NONE : this.dictionary.find(value);
+    }
+
+    private static boolean matches(ByteBuffer segment, int fieldOffset, int id) {
+        return id == CloudTrailDictionary.NONE || segment.getInt(fieldOffset) == id;
+    }
+
+    private static int firstRecordAtOrAfter(ByteBuffer segment, int recordCount, long fromMillis) {
+        int low = 0;
+        int high = recordCount;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (segment.getLong(HEADER_SIZE + middle * RECORD_SIZE + TIME) < fromMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private IndexedEvent toEvent(ByteBuffer segment, int offset) {
+        return new IndexedEvent(segment.getLong(offset + TIME),
+                this.dictionary.valueOf(segment.getInt(offset + SOURCE)),
+                this.dictionary.valueOf(segment.getInt(offset + NAME)),
+                this.dictionary.valueOf(segment.getInt(offset + PRINCIPAL)),
+                this.dictionary.valueOf(segment.getInt(offset + ERROR_CODE)),
+                this.dictionary.valueOf(segment.getInt(offset + LOG_KEY)),
+                segment.getInt(offset + EVENT_INDEX));
+    }
+
+    private static List<Path> segmentFiles(Path directory) throws IOException {
+        List<Path> segmentFiles = new ArrayList<>();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                for (Path file : files) {
+                    segmentFiles.add(file);
+                }
+            }
+        }
+        Collections.sort(segmentFiles);
+        return segmentFiles;
+    }
+
+    /**
+     * Principal an event is attributed to: the caller's ARN when there is one, otherwise whatever identifies
+     * it best (the principal id, or the service that made the call on someone's behalf).
+     */
+    static String principalOf(JsonNode event) {
+        JsonNode userIdentity = event.path("userIdentity");
+        for (String field : new String[]{"arn", "principalId", "invokedBy", "type"}) {
+            JsonNode value = userIdentity.get(field);
+            if (value != null && value.isTextual() && !value.asText().isEmpty()) {
+                return value.asText();
+            }
+        }
+        return null;
+    }
+
+    static String textOf(JsonNode event, String field) {
+        JsonNode value = event.get(field);
+        return value != null && value.isTextual() ? value.asText() : null;
+    }
+
+    /**
+     * Collects events into memory and writes them out as a sorted segment every {@link #SEGMENT_RECORDS}
+     * events and on close. Safe to call from several threads, so it can be the sink of a
+     * {@link CloudTrailPipeline} directly.
+     */
+    public static final class Writer implements CloudTrailPipeline.LogEventSink, AutoCloseable {
+        private final Path directory;
+        private final CloudTrailDictionary dictionary;
+        private int nextSegment;
+        // one slot per buffered event, columns are kept in separate primitive arrays
+        private final long[] eventTimes = new long[SEGMENT_RECORDS];
+        private final int[] fields = new int[SEGMENT_RECORDS * 6];
+        private int buffered;
+
+        private Writer(Path directory, CloudTrailDictionary dictionary, int nextSegment) {
+            this.directory = directory;
+            this.dictionary = dictionary;
+            this.nextSegment = nextSegment;
+        }
+
+        @Override
+        public void onEvent(String logKey, int eventIndex, ObjectNode event) {
+            add(logKey, eventIndex, event);
+        }
+
+        /**
+         * Adds one event. Events without a parseable eventTime are skipped, a time index can't place them.
+         */
+        public synchronized void add(String logKey, int eventIndex, JsonNode event) {
+            long eventTime;
+            try {
+                eventTime = Instant.parse(event.path("eventTime").asText()).toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return;
+            }
+            int field = this.buffered * 6;
+            this.eventTimes[this.buffered] = eventTime;
+            this.fields[field] = this.dictionary.idOf(textOf(event, "eventSource"));
+            this.fields[field + 1] = this.dictionary.idOf(textOf(event, "eventName"));
+            this.fields[field + 2] = this.dictionary.idOf(principalOf(event));
+            this.fields[field + 3] = this.dictionary.idOf(textOf(event, "errorCode"));
+            this.fields[field + 4] = this.dictionary.idOf(logKey);
+            this.fields[field + 5] = eventIndex;
+            if (++this.buffered == SEGMENT_RECORDS) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Couldn't write CloudTrail index segment", e);
+                }
+            }
+        }
+
+        /**
+         * Writes the buffered events as a new segment. The dictionary is saved first, so a segment on disk never
+         * refers to ids that aren't in the dictionary file.
+         */
+        public synchronized void flush() throws IOException {
+            if (this.buffered == 0) {
+                return;
+            }
+            int[] order = sortedByTime(this.eventTimes, this.buffered);
+            ByteBuffer segment = ByteBuffer.allocate(HEADER_SIZE + this.buffered * RECORD_SIZE);
+            segment.putInt(SEGMENT_MAGIC)
+                    .putInt(this.buffered)
+                    .putLong(this.eventTimes[order[0]])
+                    .putLong(this.eventTimes[order[this.buffered - 1]])
+                    .putLong(0);
+            for (int i = 0; i < this.buffered; i++) {
+                int event = order[i];
+                segment.putLong(this.eventTimes[event]);
+                for (int field = event * 6; field < event * 6 + 6; field++) {
+                    segment.putInt(this.fields[field]);
+                }
+            }
+            segment.flip();
+
+            this.dictionary.save(this.directory.resolve(DICTIONARY_FILE));
+            Path segmentFile = this.directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, this.nextSegment++,
+                    SEGMENT_SUFFIX));
+            // written under a name readers ignore and then renamed, so a reader never maps a partial segment
+            Path temporaryFile = this.directory.resolve(segmentFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (segment.hasRemaining()) {
+                    channel.write(segment);
+                }
+                channel.force(true);
+            }
+            Files.move(temporaryFile, segmentFile, StandardCopyOption.ATOMIC_MOVE);
+            this.buffered = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * Positions 0..count-1 ordered by their time, using a bottom up merge sort on int arrays so sorting a
+         * segment's worth of events doesn't box a million Integers.
+         */
+        private static int[] sortedByTime(long[] times, int count) {
+            int[] order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+            }
+            int[] scratch = new int[count];
+            for (int width = 1; width < count; width *= 2) {
+                for (int low = 0; low < count - width; low += 2 * width) {
+                    int middle = low + width;
+                    int high = Math.min(low + 2 * width, count);
+                    int left = low;
+                    int right = middle;
+                    int out = low;
+                    while (left < middle && right < high) {
+                        scratch[out++] = times[order[right]] < times[order[left]] ? order[right++] : order[left++];
+                    }
+                    while (left < middle) {
+                        scratch[out++] = order[left++];
+                    }
+                    while (right < high) {
+                        scratch[out++] = order[right++];
+                    }
+                    System.arraycopy(scratch, low, order, low, high - low);
+                }
+            }
+            return order;
+        }
+    }
+
+    /**
+     * One event as the index knows it. logKey and eventIndex locate the full event in the trail bucket.
+     */
+    public static final class IndexedEvent {
+        private final long eventTime;
+        private final String eventSource;
+        private final String eventName;
+        private final String principal;
+        private final String errorCode;
+        private final String logKey;
+        private final int eventIndex;
+
+        IndexedEvent(long eventTime, String eventSource, String eventName, String principal, String errorCode,
+                     String logKey, int eventIndex) {
+            this.eventTime = eventTime;
+            this.eventSource = eventSource;
+            this.eventName = eventName;
+            this.principal = principal;
+            this.errorCode = errorCode;
+            this.logKey = logKey;
+            this.eventIndex = eventIndex;
+        }
+
+        public long getEventTime() {
+            return this.eventTime;
+        }
+
+        public String getEventSource() {
+            return this.eventSource;
+        }
+
+        public String getEventName() {
+            return this.eventName;
+        }
+
+        public String getPrincipal() {
+            return this.principal;
+        }
+
+        public String getErrorCode() {
+            return this.errorCode;
+        }
+
+        public String getLogKey() {
+            return this.logKey;
+        }
+
+        public int getEventIndex() {
+            return this.eventIndex;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s %s %s %s %s[%d]", Instant.ofEpochMilli(this.eventTime), this.eventSource,
+                    this.eventName, this.principal, this.errorCode == null ? "-" : this.errorCode, this.logKey,
+                    this.eventIndex);
+        }
+    }
+}
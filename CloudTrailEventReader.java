@@ -0,0 +1,242 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streaming reader for CloudTrail log files. A log file is one JSON object holding a "Records" array of events;
+ * rather than reading the whole (gunzipped) file into a String and building one JSONObject out of it, the reader
+ * walks the file token by token with a Jackson {@link JsonParser} and materializes a single event at a time.
+ * Memory per file stays at one event no matter how big the file is, and the first event is available as soon
+ * as its bytes have been read.
+ *
+ * <pre>
+ * try (CloudTrailEventReader events = CloudTrailEventReader.fromGzip(log.getObjectContent())) {
+ *     ObjectNode event;
+ *     while ((event = events.nextEvent()) != null) {
+ *         System.out.println(event.get("eventName").asText());
+ *     }
+ * }
+ * </pre>
+ *
+ * Given a {@link CloudTrailFilter}, the reader only returns the events that match it, and decides that while it
+ * reads each event. Scalar fields and fields the filter looks at are read as they come; other objects and
+ * arrays that come before the filter has an answer are buffered as raw tokens. As soon as the filter can't
+ * match any more, the rest of the event is skipped over without building it.
+ *
+ * CloudTrail writes the fields of a record in a fixed order ({@link #FIELD_ORDER}), and leaves out the ones an
+ * event doesn't have. So once a field has been read, every field before it in that order that hasn't shown up
+ * is known to be missing, which lets predicates on missing fields (errorCode != null, errorCode == AccessDenied)
+ * be decided early too. A filter on fields up to errorMessage is decided before requestParameters and
+ * responseElements are reached, and for selective filters those trees are mostly skipped rather than built.
+ * Predicates on fields that come after them (readOnly, eventType, recipientAccountId, ...) are only decided
+ * once those are reached, after requestParameters and responseElements have been buffered. CloudTrail itself
+ * keeps to the order; in a log that doesn't, a field showing up after it was taken for missing makes the reader
+ * check a match again on the whole event, but an event already skipped as not matching stays skipped.
+ */
+public class CloudTrailEventReader implements Closeable {
+    public static final String RECORDS = "Records";
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Order CloudTrail writes record fields in, see the CloudTrail record contents reference.
+     */
+    static final List<String> FIELD_ORDER = Arrays.asList("eventVersion", "userIdentity", "eventTime",
+            "eventSource", "eventName", "awsRegion", "sourceIPAddress", "userAgent", "errorCode", "errorMessage",
+            "requestParameters", "responseElements", "additionalEventData", "requestID", "eventID", "readOnly",
+            "resources", "eventType", "apiVersion", "managementEvent", "recipientAccountId", "serviceEventDetails",
+            "sharedEventID", "vpcEndpointId", "eventCategory", "addendum", "sessionCredentialFromConsole",
+            "edgeDeviceDetails", "tlsDetails");
+    private static final Map<String, Integer> FIELD_POSITIONS = new HashMap<>();
+
+    static {
+        for (int position = 0; position < FIELD_ORDER.size(); position++) {
+            FIELD_POSITIONS.put(FIELD_ORDER.get(position), position);
+        }
+    }
+
+    static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final JsonParser parser;
+    private final CloudTrailFilter filter;
+    // fields read so far, plus the ones known to be missing from the field order
+    private final Set<String> knownFields = new HashSet<>();
+    private final Set<String> missingFields = new HashSet<>();
+    private final Map<String, TokenBuffer> deferredFields = new LinkedHashMap<>();
+    private boolean inRecords;
+    private boolean finished;
+    private int recordIndex = -1;
+
+    public CloudTrailEventReader(InputStream json) throws IOException {
+        this(json, null);
+    }
+
+    /**
+     * @param filter only events matching it are returned, null returns every event
+     */
+    public CloudTrailEventReader(InputStream json, CloudTrailFilter filter) throws IOException {
+        this.parser = OBJECT_MAPPER.getFactory().createParser(json);
+        this.filter = filter;
+    }
+
+    /**
+     * Reader over a gzip compressed log file, the way CloudTrail delivers them to S3.
+     */
+    public static CloudTrailEventReader fromGzip(InputStream gzipped) throws IOException {
+        return fromGzip(gzipped, null);
+    }
+
+    public static CloudTrailEventReader fromGzip(InputStream gzipped, CloudTrailFilter filter) throws IOException {
+        return new CloudTrailEventReader(new GZIPInputStream(gzipped, GZIP_BUFFER_SIZE), filter);
+    }
+
+    /**
+     * @return the next (matching) event in the log, or null once the Records array has been read
+     */
+    public ObjectNode nextEvent() throws IOException {
+        if (!this.inRecords && !seekRecords()) {
+            return null;
+        }
+        if (this.finished) {
+            return null;
+        }
+        JsonToken token = this.parser.nextToken();
+        while (token != null && token != JsonToken.END_ARRAY) {
+            this.recordIndex++;
+            if (token == JsonToken.START_OBJECT) {
+                if (this.filter == null) {
+                    return OBJECT_MAPPER.readTree(this.parser);
+                }
+                ObjectNode event = readFilteredEvent();
+                if (event != null) {
+                    return event;
+                }
+            } else {
+                // anything in Records that isn't an event object is skipped
+                this.parser.skipChildren();
+            }
+            token = this.parser.nextToken();
+        }
+        this.finished = true;
+        return null;
+    }
+
+    /**
+     * Position in the Records array of the event {@link #nextEvent} returned last. With a filter this is not
+     * the number of events returned so far, events that didn't match are counted too.
+     */
+    public int getEventIndex() {
+        return this.recordIndex;
+    }
+
+    /**
+     * Reads the event the parser is at the start of, field by field, checking the filter after every field and
+     * before every field that settles missing ones.
+     *
+     * @return the event, or null if it doesn't match (the parser is then at the event's end all the same)
+     */
+    private ObjectNode readFilteredEvent() throws IOException {
+        ObjectNode event = OBJECT_MAPPER.createObjectNode();
+        this.knownFields.clear();
+        this.missingFields.clear();
+        this.deferredFields.clear();
+        int decision = CloudTrailFilter.UNKNOWN;
+        // position in FIELD_ORDER of the last field read
+        int lastPosition = 0;
+        boolean outOfOrder = false;
+        while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = this.parser.getCurrentName();
+            JsonToken value = this.parser.nextToken();
+            Integer position = FIELD_POSITIONS.get(fieldName);
+            if (this.missingFields.contains(fieldName)) {
+                // not in CloudTrail's order after all, from here on only what has been read is known
+                outOfOrder = true;
+                this.knownFields.removeAll(this.missingFields);
+                this.missingFields.clear();
+            } else if (!outOfOrder && position != null && position > lastPosition) {
+                int missingBefore = this.missingFields.size();
+                for (String earlier : FIELD_ORDER.subList(lastPosition, position)) {
+                    if (this.knownFields.add(earlier)) {
+                        this.missingFields.add(earlier);
+                    }
+                }
+                lastPosition = position;
+                if (decision == CloudTrailFilter.UNKNOWN && this.missingFields.size() > missingBefore) {
+                    // decided before the value is read, so the field that settled it can already be skipped
+                    decision = this.filter.evaluate(event, this.knownFields, false);
+                }
+            }
+            if (decision == CloudTrailFilter.NO_MATCH) {
+                this.parser.skipChildren();
+            } else if (decision == CloudTrailFilter.MATCH || value.isScalarValue() || this.filter.references(fieldName)) {
+                event.set(fieldName, OBJECT_MAPPER.readTree(this.parser));
+            } else {
+                // may never be needed, so keep the tokens and only build the tree if the event matches; the
+                // placeholder keeps the field in its original position
+                TokenBuffer tokens = new TokenBuffer(this.parser);
+                tokens.copyCurrentStructure(this.parser);
+                this.deferredFields.put(fieldName, tokens);
+                event.putNull(fieldName);
+            }
+            this.knownFields.add(fieldName);
+            if (decision == CloudTrailFilter.UNKNOWN) {
+                decision = this.filter.evaluate(event, this.knownFields, false);
+            }
+        }
+        if (decision == CloudTrailFilter.UNKNOWN || (decision == CloudTrailFilter.MATCH && outOfOrder)) {
+            // a match may have counted on a field being missing that turned up later
+            decision = this.filter.evaluate(event, this.knownFields, true);
+        }
+        if (decision != CloudTrailFilter.MATCH) {
+            return null;
+        }
+        for (Map.Entry<String, TokenBuffer> deferred : this.deferredFields.entrySet()) {
+            try (JsonParser deferredParser = deferred.getValue().asParser()) {
+                event.set(deferred.getKey(), OBJECT_MAPPER.readTree(deferredParser));
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Moves the parser to the start of the Records array, skipping over any other top level fields.
+     *
+     * @return false if the log has no Records array
+     */
+    private boolean seekRecords() throws IOException {
+        if (this.finished) {
+            return false;
+        }
+        if (this.parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("CloudTrail log should start with a JSON object");
+        }
+        while (this.parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = this.parser.getCurrentName();
+            JsonToken value = this.parser.nextToken();
+            if (RECORDS.equals(fieldName) && value == JsonToken.START_ARRAY) {
+                this.inRecords = true;
+                return true;
+            }
+            this.parser.skipChildren();
+        }
+        this.finished = true;
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.parser.close();
+    }
+}
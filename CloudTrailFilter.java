@@ -0,0 +1,282 @@
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A small filter expression over CloudTrail event fields, for example
+ * <pre>
+ * eventSource == 's3.amazonaws.com' &amp;&amp; errorCode != null
+ * (eventName == 'DeleteBucket' || eventName == 'PutBucketPolicy') &amp;&amp; userIdentity.type != 'AWSService'
+ * </pre>
+ * Fields are dotted paths into the event, values are quoted strings, bare words or null (a missing field
+ * counts as null). Comparisons use == and !=, and combine with &amp;&amp;, || and parentheses, &amp;&amp; binding
+ * tighter than ||.
+ *
+ * The filter is handed to a {@link CloudTrailEventReader}, which evaluates it while it is still reading an
+ * event: {@link #evaluate} can answer before every field has been seen, and once it says no the reader skips
+ * the rest of the event without building any of it. Whether requestParameters and responseElements are among
+ * the skipped fields depends on where the fields the filter looks at come in CloudTrail's field order, see
+ * {@link CloudTrailEventReader}.
+ */
+public class CloudTrailFilter {
+    public static final int MATCH = 1;
+    public static final int NO_MATCH = 0;
+    public static final int UNKNOWN = -1;
+
+    private final String expression;
+    private final Expression root;
+    private final Set<String> referencedFields;
+
+    private CloudTrailFilter(String expression, Expression root, Set<String> referencedFields) {
+        this.expression = expression;
+        this.root = root;
+        this.referencedFields = referencedFields;
+    }
+
+    /**
+     * @throws IllegalArgumentException if expression isn't a valid filter
+     */
+    public static CloudTrailFilter parse(String expression) {
+        Parser parser = new Parser(expression);
+        Expression root = parser.parseOr();
+        parser.skipWhitespace();
+        if (parser.position != expression.length()) {
+            throw parser.error("Unexpected input");
+        }
+        return new CloudTrailFilter(expression, root, Collections.unmodifiableSet(parser.referencedFields));
+    }
+
+    /**
+     * Whether the filter looks at top level field fieldName (or anything inside it).
+     */
+    public boolean references(String fieldName) {
+        return this.referencedFields.contains(fieldName);
+    }
+
+    /**
+     * Evaluates the filter against an event that may only be partly read.
+     *
+     * @param event the fields read so far
+     * @param seenFields top level fields whose value is known: read, or known to be missing from the event. Fields
+     *                   outside it are treated as not known yet
+     * @param complete true once the whole event has been read, fields still missing are null then
+     * @return {@link #MATCH}, {@link #NO_MATCH} or, while the answer depends on fields not read yet,
+     * {@link #UNKNOWN}
+     */
+    public int evaluate(JsonNode event, Set<String> seenFields, boolean complete) {
+        return this.root.evaluate(event, seenFields, complete);
+    }
+
+    /**
+     * Evaluates the filter against a complete event.
+     */
+    public boolean matches(JsonNode event) {
+        return this.root.evaluate(event, Collections.emptySet(), true) == MATCH;
+    }
+
+    @Override
+    public String toString() {
+        return this.expression;
+    }
+
+    private interface Expression {
+        int evaluate(JsonNode event, Set<String> seenFields, boolean complete);
+    }
+
+    private static final class And implements Expression {
+        private final List<Expression> operands;
+
+        private And(List<Expression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public int evaluate(JsonNode event, Set<String> seenFields, boolean complete) {
+            int result = MATCH;
+            for (Expression operand : this.operands) {
+                int operandResult = operand.evaluate(event, seenFields, complete);
+                if (operandResult == NO_MATCH) {
+                    return NO_MATCH;
+                }
+                if (operandResult == UNKNOWN) {
+                    result = UNKNOWN;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Or implements Expression {
+        private final List<Expression> operands;
+
+        private Or(List<Expression> operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        public int evaluate(JsonNode event, Set<String> seenFields, boolean complete) {
+            int result = NO_MATCH;
+            for (Expression operand : this.operands) {
+                int operandResult = operand.evaluate(event, seenFields, complete);
+                if (operandResult == MATCH) {
+                    return MATCH;
+                }
+                if (operandResult == UNKNOWN) {
+                    result = UNKNOWN;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static final class Comparison implements Expression {
+        private final String[] path;
+        private final boolean equals;
+        // null compares against missing or null fields
+        private final String value;
+
+        private Comparison(String[] path, boolean equals, String value) {
+            this.path = path;
+            this.equals = equals;
+            this.value = value;
+        }
+
+        @Override
+        public int evaluate(JsonNode event, Set<String> seenFields, boolean complete) {
+            if (!complete && !seenFields.contains(this.path[0])) {
+                return UNKNOWN;
+            }
+            JsonNode field = event;
+            for (String segment : this.path) {
+                field = field == null ? null : field.get(segment);
+            }
+            boolean isNull = field == null || field.isNull();
+            boolean equal;
+            if (this.value == null) {
+                equal = isNull;
+            } else {
+                equal = !isNull && field.isValueNode() && this.value.equals(field.asText());
+            }
+            return equal == this.equals ? MATCH : NO_MATCH;
+        }
+    }
+
+    /**
+     * Recursive descent parser: or := and ('||' and)*, and := primary ('&amp;&amp;' primary)*,
+     * primary := '(' or ')' | path ('==' | '!=') value.
+     */
+    private static final class Parser {
+        private final String input;
+        private final Set<String> referencedFields = new HashSet<>();
+        private int position;
+
+        private Parser(String input) {
+            this.input = input;
+        }
+
+        private Expression parseOr() {
+            List<Expression> operands = new ArrayList<>();
+            operands.add(parseAnd());
+            while (consume("||")) {
+                operands.add(parseAnd());
+            }
+            return operands.size() == 1 ? operands.get(0) : new Or(operands);
+        }
+
+        private Expression parseAnd() {
+            List<Expression> operands = new ArrayList<>();
+            operands.add(parsePrimary());
+            while (consume("&&")) {
+                operands.add(parsePrimary());
+            }
+            return operands.size() == 1 ? operands.get(0) : new And(operands);
+        }
+
+        private Expression parsePrimary() {
+            if (consume("(")) {
+                Expression inner = parseOr();
+                if (!consume(")")) {
+                    throw error("Expected )");
+                }
+                return inner;
+            }
+            String path = parseWord();
+            if (path.isEmpty()) {
+                throw error("Expected a field name");
+            }
+            boolean equals;
+            if (consume("==")) {
+                equals = true;
+            } else if (consume("!=")) {
+                equals = false;
+            } else {
+                throw error("Expected == or !=");
+            }
+            String[] segments = path.split("\\.");
+            this.referencedFields.add(segments[0]);
+            return new Comparison(segments, equals, parseValue());
+        }
+
+        private String parseValue() {
+            skipWhitespace();
+            if (this.position < this.input.length()) {
+                char quote = this.input.charAt(this.position);
+                if (quote == '\'' || quote == '"') {
+                    int end = this.input.indexOf(quote, this.position + 1);
+                    if (end < 0) {
+                        throw error("Unterminated string");
+                    }
+                    String value = this.input.substring(this.position + 1, end);
+                    this.position = end + 1;
+                    return value;
+                }
+            }
+            String word = parseWord();
+            if (word.isEmpty()) {
+                throw error("Expected a value");
+            }
+            return "null".equals(word) ? null : word;
+        }
+
+        /**
+         * Field names and unquoted values: anything up to whitespace, an operator or a parenthesis.
+         */
+        private String parseWord() {
+            skipWhitespace();
+            int start = this.position;
+            while (this.position < this.input.length()) {
+                char c = this.input.charAt(this.position);
+                if (Character.isWhitespace(c) || c == '(' || c == ')' || c == '=' || c == '!' || c == '&'
+                        || c == '|') {
+                    break;
+                }
+                this.position++;
+            }
+            return this.input.substring(start, this.position);
+        }
+
+        private boolean consume(String token) {
+            skipWhitespace();
+            if (this.input.startsWith(token, this.position)) {
+                this.position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void skipWhitespace() {
+            while (this.position < this.input.length() && Character.isWhitespace(this.input.charAt(this.position))) {
+                this.position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + this.position + " of filter: "
+                    + this.input);
+        }
+    }
+}
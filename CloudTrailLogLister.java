@@ -0,0 +1,203 @@
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Lists CloudTrail log objects for a region and date range without walking the whole trail bucket.
+ *
+ * CloudTrail delivers logs under AWSLogs/{account}/CloudTrail/{region}/yyyy/mm/dd/, so instead of a single
+ * listObjects call (which stops at 1,000 keys) filtered with key.contains(region), we build the prefix of every
+ * requested day and only list those. The day prefixes are listed in parallel and every one is paged through to
+ * the end. Summaries are handed to the caller page by page as they arrive, on the caller's thread, so the
+ * consumer doesn't need to be thread safe and processing can start before listing is done.
+ *
+ * <pre>
+ * CloudTrailLogLister lister = new CloudTrailLogLister(amazonS3, cloudTrailBucket.getName(), 8);
+ * for (String accountId : lister.findAccountIds()) {
+ *     lister.listLogs(accountId, "us-west-2", LocalDate.now().minusDays(7), LocalDate.now(), summary -&gt; ...);
+ * }
+ * </pre>
+ */
+public class CloudTrailLogLister {
+    public static final String AWS_LOGS = "AWSLogs/";
+    private static final String DELIMITER = "/";
+    private static final DateTimeFormatter DAY_PATH = DateTimeFormatter.ofPattern("yyyy/MM/dd/");
+
+    // pages waiting for the caller, listing pauses when the caller falls this far behind
+    private static final int MAX_BUFFERED_PAGES = 32;
+
+    private final AmazonS3 amazonS3;
+    private final String bucket;
+    private final int parallelism;
+
+    public CloudTrailLogLister(AmazonS3 amazonS3, String bucket, int parallelism) {
+        this.amazonS3 = amazonS3;
+        this.bucket = bucket;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Accounts with logs in the bucket, taken from the folders under AWSLogs/.
+     */
+    public List<String> findAccountIds() {
+        ListObjectsV2Request listRequest = new ListObjectsV2Request()
+                .withBucketName(this.bucket)
+                .withPrefix(AWS_LOGS)
+                .withDelimiter(DELIMITER);
+
+        List<String> accountIds = new ArrayList<>();
+        ListObjectsV2Result listResult;
+        do {
+            listResult = this.amazonS3.listObjectsV2(listRequest);
+            for (String accountPrefix : listResult.getCommonPrefixes()) {
+                accountIds.add(accountPrefix.substring(AWS_LOGS.length(), accountPrefix.length() - 1));
+            }
+            listRequest.setContinuationToken(listResult.getNextContinuationToken());
+        } while (listResult.isTruncated());
+        return accountIds;
+    }
+
+    /**
+     * Prefix of the folder CloudTrail delivers an account's logs for region into.
+     */
+    public static String regionPrefix(String accountId, String region) {
+        return AWS_LOGS + accountId + "/CloudTrail/" + region + DELIMITER;
+    }
+
+    /**
+     * One prefix per day from from to to, both inclusive.
+     */
+    public static List<String> dayPrefixes(String accountId, String region, LocalDate from, LocalDate to) {
+        List<String> prefixes = new ArrayList<>();
+        for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+            prefixes.add(regionPrefix(accountId, region) + DAY_PATH.format(day));
+        }
+        return prefixes;
+    }
+
+    public void listLogs(String accountId, String region, LocalDate from, LocalDate to,
+                         Consumer<S3ObjectSummary> consumer) {
+        listLogs(dayPrefixes(accountId, region, from, to), consumer);
+    }
+
+    /**
+     * Lists the logs of an account and region delivered since the last run recorded in watermark, or from the
+     * start of day from if there is no watermark for the region yet. Every listed key is reported to
+     * {@link CloudTrailWatermark#listed} before it reaches consumer, so the consumer (or the pipeline it feeds)
+     * only has to call {@link CloudTrailWatermark#completed} once it is done with a log.
+     */
+    public void listLogsSince(String accountId, String region, LocalDate from, CloudTrailWatermark watermark,
+                              Consumer<S3ObjectSummary> consumer) {
+        String prefix = regionPrefix(accountId, region);
+        String startAfter = watermark.startAfter(prefix, prefix + DAY_PATH.format(from));
+        listLogsAfter(Collections.singletonMap(prefix, startAfter), summary -> {
+            watermark.listed(summary.getKey());
+            consumer.accept(summary);
+        });
+    }
+
+    /**
+     * Lists every object under each of the given prefixes, in parallel, and passes each summary to consumer on
+     * the calling thread. Summaries of one prefix arrive in key order, summaries of different prefixes are
+     * interleaved.
+     */
+    public void listLogs(List<String> prefixes, Consumer<S3ObjectSummary> consumer) {
+        Map<String, String> wholePrefixes = new LinkedHashMap<>();
+        for (String prefix : prefixes) {
+            wholePrefixes.put(prefix, null);
+        }
+        listLogsAfter(wholePrefixes, consumer);
+    }
+
+    /**
+     * Same as {@link #listLogs(List, Consumer)}, but each prefix is only listed from the keys that sort after its
+     * start-after key (a null start-after key lists the whole prefix). Used to pick up from a
+     * {@link CloudTrailWatermark}.
+     */
+    public void listLogsAfter(Map<String, String> startAfterByPrefix, Consumer<S3ObjectSummary> consumer) {
+        if (startAfterByPrefix.isEmpty()) {
+            return;
+        }
+        BlockingQueue<ListedPage> pages = new LinkedBlockingQueue<>(MAX_BUFFERED_PAGES);
+        ExecutorService prefixListers = Executors.newFixedThreadPool(Math.min(this.parallelism,
+                startAfterByPrefix.size()));
+        List<String> prefixes = new ArrayList<>(startAfterByPrefix.keySet());
+        try {
+            for (String prefix : prefixes) {
+                prefixListers.submit(() -> listPrefix(prefix, startAfterByPrefix.get(prefix), pages));
+            }
+
+            int listedPrefixes = 0;
+            while (listedPrefixes < prefixes.size()) {
+                ListedPage page = pages.take();
+                if (page.error != null) {
+                    if (page.error instanceof RuntimeException) {
+                        throw (RuntimeException) page.error;
+                    }
+                    throw new AmazonClientException("Unable to list CloudTrail logs", page.error);
+                }
+                page.summaries.forEach(consumer);
+                if (page.last) {
+                    listedPrefixes++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while listing CloudTrail logs", e);
+        } finally {
+            prefixListers.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists one prefix onto pages. An interrupt means the consumer gave up (see the shutdownNow in
+     * {@link #listLogsAfter}), so the lister just stops.
+     */
+    private void listPrefix(String prefix, String startAfter, BlockingQueue<ListedPage> pages) {
+        ListObjectsV2Request listRequest = new ListObjectsV2Request()
+                .withBucketName(this.bucket)
+                .withPrefix(prefix)
+                .withStartAfter(startAfter);
+        try {
+            try {
+                ListObjectsV2Result listResult;
+                do {
+                    listResult = this.amazonS3.listObjectsV2(listRequest);
+                    pages.put(new ListedPage(listResult.getObjectSummaries(), !listResult.isTruncated(), null));
+                    listRequest.setContinuationToken(listResult.getNextContinuationToken());
+                } while (listResult.isTruncated());
+            } catch (RuntimeException e) {
+                pages.put(new ListedPage(Collections.emptyList(), true, e));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class ListedPage {
+        private final List<S3ObjectSummary> summaries;
+        private final boolean last;
+        private final Throwable error;
+
+        private ListedPage(List<S3ObjectSummary> summaries, boolean last, Throwable error) {
+            this.summaries = summaries;
+            this.last = last;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.util.IOUtils;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fetch and decode pipeline for many CloudTrail log objects. Fetching logs one after another is dominated by S3
+ * latency, so the work is split in stages that run side by side:
+ *
+ * <ol>
+ *     <li>a pool of download threads fetches the (gzip compressed) log objects</li>
+ *     <li>a pool of parse threads takes fetched logs off a bounded queue, gunzips them and streams their events
+ *     with a {@link CloudTrailEventReader}</li>
+ *     <li>every event is handed to a {@link LogEventSink}</li>
+ * </ol>
+ *
+ * At most maxInFlightLogs logs are between {@link #submit} and the sink at any time, {@link #submit} blocks
+ * once that many are in flight and the downloaders block when the parse queue is full, so a slow stage holds
+ * back the ones before it instead of piling logs up in memory.
+ *
+ * <pre>
+ * try (CloudTrailPipeline pipeline = new CloudTrailPipeline(amazonS3, bucket, sink, 16, 4, 32)) {
+ *     logLister.listLogs(accountId, "us-west-2", from, to, pipeline::submit);
+ *     pipeline.finish();
+ * }
+ * </pre>
+ */
+public class CloudTrailPipeline implements AutoCloseable {
+    private static final FetchedLog END_OF_LOGS = new FetchedLog(null, null);
+
+    private final AmazonS3 amazonS3;
+    private final String bucket;
+    private final LogEventSink sink;
+    private final CloudTrailFilter filter;
+    private final int maxInFlightLogs;
+    private final int parseThreads;
+
+    private final Semaphore inFlightLogs;
+    private final BlockingQueue<FetchedLog> fetchedLogs;
+    private final ExecutorService downloaders;
+    private final ExecutorService parsers;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean closed;
+
+    /**
+     * Receives the events of every log that goes through the pipeline. Called from the parse threads, so
+     * implementations have to be thread safe.
+     */
+    public interface LogEventSink {
+        /**
+         * @param logKey key of the log object the event came from
+         * @param eventIndex position of the event in the log's Records array
+         */
+        void onEvent(String logKey, int eventIndex, ObjectNode event);
+
+        /**
+         * Called once every event of a log has been passed to {@link #onEvent}.
+         */
+        default void onLogComplete(String logKey) {
+        }
+    }
+
+    public CloudTrailPipeline(AmazonS3 amazonS3, String bucket, LogEventSink sink, int downloadThreads,
+                              int parseThreads, int maxInFlightLogs) {
+        this(amazonS3, bucket, sink, null, downloadThreads, parseThreads, maxInFlightLogs);
+    }
+
+    /**
+     * @param filter only events matching it reach the sink, evaluated while the events are parsed (see
+     *               {@link CloudTrailEventReader}); null passes every event
+     */
+    public CloudTrailPipeline(AmazonS3 amazonS3, String bucket, LogEventSink sink, CloudTrailFilter filter,
+                              int downloadThreads, int parseThreads, int maxInFlightLogs) {
+        this.amazonS3 = amazonS3;
+        this.filter = filter;
+        this.bucket = bucket;
+        this.sink = sink;
+        this.maxInFlightLogs = Math.max(1, maxInFlightLogs);
+        this.parseThreads = Math.max(1, parseThreads);
+        this.inFlightLogs = new Semaphore(this.maxInFlightLogs);
+        this.fetchedLogs = new ArrayBlockingQueue<>(this.parseThreads * 2);
+        this.downloaders = Executors.newFixedThreadPool(Math.max(1, downloadThreads));
+        this.parsers = Executors.newFixedThreadPool(this.parseThreads);
+        for (int i = 0; i < this.parseThreads; i++) {
+            this.parsers.submit(this::parseFetchedLogs);
+        }
+    }
+
+    /**
+     * Queues a log for download, blocking while maxInFlightLogs logs are already in the pipeline.
+     */
+    public void submit(S3ObjectSummary logSummary) {
+        throwIfFailed();
+        try {
+            this.inFlightLogs.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while submitting log: " + logSummary.getKey(), e);
+        }
+        this.downloaders.submit(() -> download(logSummary.getKey()));
+    }
+
+    /**
+     * Waits until every submitted log has been through the sink.
+     *
+     * @throws AmazonClientException if any log failed to download or parse
+     */
+    public void finish() {
+        try {
+            // every permit back means nothing is left in flight
+            this.inFlightLogs.acquire(this.maxInFlightLogs);
+            this.inFlightLogs.release(this.maxInFlightLogs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while waiting for logs to finish", e);
+        }
+        throwIfFailed();
+    }
+
+    /**
+     * Stops the pipeline and returns once no download or parse thread is running any more, so nothing reaches the
+     * sink after close (the sink is usually closed right after the pipeline). Logs still in flight are dropped.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.downloaders.shutdownNow();
+        for (int i = 0; i < this.parseThreads; i++) {
+            // parsers stop at the marker, offer so a full queue can't block close
+            this.fetchedLogs.offer(END_OF_LOGS);
+        }
+        this.parsers.shutdownNow();
+        try {
+            // a parser in the middle of a log stops at its next event, a downloader once its GET returns
+            while (!this.parsers.awaitTermination(1, TimeUnit.SECONDS)
+                    || !this.downloaders.awaitTermination(1, TimeUnit.SECONDS)) {
+                System.out.println("Waiting for CloudTrail pipeline threads to stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void download(String logKey) {
+        try {
+            byte[] compressedLog;
+            try (S3Object log = this.amazonS3.getObject(this.bucket, logKey)) {
+                compressedLog = IOUtils.toByteArray(log.getObjectContent());
+            }
+            // blocks while the parsers are behind
+            this.fetchedLogs.put(new FetchedLog(logKey, compressedLog));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.inFlightLogs.release();
+        } catch (IOException | RuntimeException e) {
+            fail(logKey, e);
+            this.inFlightLogs.release();
+        }
+    }
+
+    private void parseFetchedLogs() {
+        try {
+            while (true) {
+                FetchedLog fetchedLog = this.fetchedLogs.take();
+                if (fetchedLog == END_OF_LOGS) {
+                    return;
+                }
+                try {
+                    parse(fetchedLog);
+                } catch (IOException | RuntimeException e) {
+                    fail(fetchedLog.key, e);
+                } finally {
+                    this.inFlightLogs.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void parse(FetchedLog fetchedLog) throws IOException {
+        try (CloudTrailEventReader logEvents = CloudTrailEventReader.fromGzip(
+                new ByteArrayInputStream(fetchedLog.compressedLog), this.filter)) {
+            ObjectNode logEvent;
+            while ((logEvent = logEvents.nextEvent()) != null) {
+                if (this.closed) {
+                    // the log is dropped, it isn't complete
+                    return;
+                }
+                this.sink.onEvent(fetchedLog.key, logEvents.getEventIndex(), logEvent);
+            }
+        }
+        this.sink.onLogComplete(fetchedLog.key);
+    }
+
+    private void fail(String logKey, Exception e) {
+        System.out.printf("Error processing log %s: %s\n", logKey, e.getMessage());
+        this.failure.compareAndSet(null, e);
+    }
+
+    private void throwIfFailed() {
+        Throwable error = this.failure.get();
+        if (error != null) {
+            throw new AmazonClientException("CloudTrail pipeline failed: " + error.getMessage(), error);
+        }
+    }
+
+    private static final class FetchedLog {
+        private final String key;
+        private final byte[] compressedLog;
+
+        private FetchedLog(String key, byte[] compressedLog) {
+            this.key = key;
+            this.compressedLog = compressedLog;
+        }
+    }
+}
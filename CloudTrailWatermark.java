@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Remembers how far CloudTrail processing got, so a scheduled run only has to look at logs delivered since the
+ * last one. For every region prefix (AWSLogs/{account}/CloudTrail/{region}/) the watermark is the last key
+ * that was fully processed along with every key before it. It is kept in a local properties file and handed to
+ * ListObjectsV2 as StartAfter on the next run.
+ *
+ * Logs finish out of order when they go through a {@link CloudTrailPipeline}, so the watermark can't simply be
+ * the last key to finish. Keys are reported with {@link #listed} in listing (key) order and with
+ * {@link #completed} as they finish, and the watermark only moves up to the highest key below the oldest one
+ * still in flight. A log that fails is never completed and holds the watermark back, so the next run picks it
+ * up again.
+ */
+public class CloudTrailWatermark {
+    private final Path watermarkFile;
+    private final Map<String, String> watermarks = new HashMap<>();
+    private final Map<String, NavigableSet<String>> pendingKeys = new HashMap<>();
+    private final Map<String, NavigableSet<String>> completedKeys = new HashMap<>();
+
+    private CloudTrailWatermark(Path watermarkFile) {
+        this.watermarkFile = watermarkFile;
+    }
+
+    /**
+     * Loads the watermarks saved at watermarkFile, or starts empty if there is no file yet.
+     */
+    public static CloudTrailWatermark load(Path watermarkFile) throws IOException {
+        CloudTrailWatermark watermark = new CloudTrailWatermark(watermarkFile);
+        if (Files.exists(watermarkFile)) {
+            Properties saved = new Properties();
+            try (InputStream in = Files.newInputStream(watermarkFile)) {
+                saved.load(in);
+            }
+            for (String prefix : saved.stringPropertyNames()) {
+                watermark.watermarks.put(prefix, saved.getProperty(prefix));
+            }
+        }
+        return watermark;
+    }
+
+    /**
+     * Region prefix a log key belongs to: the first four segments of AWSLogs/{account}/CloudTrail/{region}/...
+     */
+    public static String regionPrefixOf(String logKey) {
+        int end = -1;
+        for (int segment = 0; segment < 4; segment++) {
+            end = logKey.indexOf('/', end + 1);
+            if (end < 0) {
+                throw new IllegalArgumentException("Not a CloudTrail log key: " + logKey);
+            }
+        }
+        return logKey.substring(0, end + 1);
+    }
+
+    /**
+     * Key to start listing prefix after: the saved watermark, or when there is none, defaultStartAfter.
+     */
+    public synchronized String startAfter(String prefix, String defaultStartAfter) {
+        return this.watermarks.getOrDefault(prefix, defaultStartAfter);
+    }
+
+    public synchronized String get(String prefix) {
+        return this.watermarks.get(prefix);
+    }
+
+    /**
+     * Records that a log has been listed and is about to be processed. Must be called in key order per prefix.
+     */
+    public synchronized void listed(String logKey) {
+        this.pendingKeys.computeIfAbsent(regionPrefixOf(logKey), prefix -> new TreeSet<>()).add(logKey);
+    }
+
+    /**
+     * Records that a listed log has been fully processed, moving the watermark if nothing before it is still
+     * in flight.
+     */
+    public synchronized void completed(String logKey) {
+        String prefix = regionPrefixOf(logKey);
+        NavigableSet<String> pending = this.pendingKeys.computeIfAbsent(prefix, ignored -> new TreeSet<>());
+        NavigableSet<String> completed = this.completedKeys.computeIfAbsent(prefix, ignored -> new TreeSet<>());
+        pending.remove(logKey);
+        completed.add(logKey);
+
+        NavigableSet<String> contiguous = pending.isEmpty() ? completed : completed.headSet(pending.first(), false);
+        if (!contiguous.isEmpty()) {
+            String highest = contiguous.last();
+            String current = this.watermarks.get(prefix);
+            if (current == null || highest.compareTo(current) > 0) {
+                this.watermarks.put(prefix, highest);
+            }
+            contiguous.clear();
+        }
+    }
+
+    /**
+     * Writes the watermarks to a temporary file and moves it over the old one, so a crash mid-save never leaves
+     * a half written file behind.
+     */
+    public synchronized void save() throws IOException {
+        Properties saved = new Properties();
+        saved.putAll(this.watermarks);
+        Path directory = this.watermarkFile.toAbsolutePath().getParent();
+        Path temporaryFile = Files.createTempFile(directory, this.watermarkFile.getFileName().toString(), ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+            saved.store(out, "Last fully processed CloudTrail log key per region prefix");
+        }
+        Files.move(temporaryFile, this.watermarkFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -5,7 +5,6 @@ import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3ObjectEntity;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
 import com.groupdocs.redaction.Redaction;
 import com.groupdocs.redaction.RedactionStatus;
@@ -21,6 +20,7 @@ import com.itextpdf.text.DocumentException;
 import com.itextpdf.text.Image;
 import com.itextpdf.text.pdf.PdfWriter;
 import org.apache.commons.io.IOUtils;
+import org.awsclients.AwsClientRegistry;
 
 import java.awt.*;
 import java.io.*;
@@ -40,6 +40,8 @@ public class ConvertDocumentEvent {
     private final String TMP = "/tmp/";
     private final String REDACTED = "redacted/";
     private final String BUCKET = System.getenv("BUCKET_NAME");
+    // get, put, tag lookup and delete of a single document, one at a time
+    private static final int S3_MAX_CONNECTIONS = 2;
 
     public String handleRequest(S3Event event, Context context) throws Exception {
         LambdaLogger logger = context.getLogger();
@@ -135,13 +137,12 @@ public class ConvertDocumentEvent {
     }
 
     /**
-     * Get {@link AmazonS3} client
+     * Get {@link AmazonS3} client. It's the same client on every call and in every warm invocation, see
+     * {@link AwsClientRegistry}.
      * @return {@link AmazonS3}
      */
     private AmazonS3 getS3Client() {
-        return AmazonS3ClientBuilder.standard()
-                .withRegion(Regions.US_WEST_2)
-                .build();
+        return AwsClientRegistry.s3(Regions.US_WEST_2.getName(), AwsClientRegistry.connections(S3_MAX_CONNECTIONS));
     }
 
     /**
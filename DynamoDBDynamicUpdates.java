@@ -3,13 +3,13 @@ package org.temp.api;
 import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDB;
-import com.amazonaws.services.dynamodbv2.AmazonDynamoDBClientBuilder;
 import com.amazonaws.services.dynamodbv2.AmazonDynamoDBStreams;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBMapper;
 import com.amazonaws.services.dynamodbv2.datamodeling.DynamoDBQueryExpression;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
 import com.amazonaws.services.lambda.runtime.events.APIGatewayV2HTTPEvent;
+import org.awsclients.AwsClientRegistry;
 import org.temp.api.models.Streams;
 
 import java.util.Map;
@@ -22,6 +22,8 @@ public class SendTemperature {
     public static final String MACHINE_NAME = "machineName";
 
     public static final String MACHINE_NAME_INDEX = "machine-name-index";
+    // a query and an update per request
+    private static final int DYNAMO_MAX_CONNECTIONS = 2;
 
     public String handleRequest(APIGatewayV2HTTPEvent event, Context context) {
         LambdaLogger logger = context.getLogger();
@@ -45,7 +47,6 @@ public class SendTemperature {
             logger.log("QueryString Parameters are null");
         }
         logger.log("Machine has been added to DDB Streams table: " + isMachineUpdated);
-        amazonDynamoDB.shutdown();
         return "success\n";
     }
 
@@ -68,16 +69,17 @@ public class SendTemperature {
      */
     private static ClientConfiguration dynamoClientConfiguration() {
         return new ClientConfiguration()
+                .withMaxConnections(DYNAMO_MAX_CONNECTIONS)
                 .withConnectionTimeout(120)
                 .withMaxErrorRetry(3)
                 .withThrottledRetries(true);
     }
 
+    /**
+     * Built on the first invocation and reused by every warm one after it, see {@link AwsClientRegistry}.
+     */
     private static AmazonDynamoDB getAmazonDynamoDBClient() {
-        return AmazonDynamoDBClientBuilder.standard()
-                .withRegion(Regions.US_WEST_2)
-                .withClientConfiguration(dynamoClientConfiguration())
-                .build();
+        return AwsClientRegistry.dynamoDB(Regions.US_WEST_2.getName(), dynamoClientConfiguration());
     }
 
     public Streams queryStreamsItemByMachineName(AmazonDynamoDB amazonDynamoDB, String machineName, LambdaLogger logger) {
@@ -1,18 +1,29 @@
 import com.amazonaws.AmazonClientException;
 import com.amazonaws.services.ec2.AmazonEC2;
-import com.amazonaws.services.ec2.AmazonEC2Client;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusRequest;
+import com.amazonaws.services.ec2.model.DescribeInstanceStatusResult;
+import com.amazonaws.services.ec2.model.InstanceStateChange;
+import com.amazonaws.services.ec2.model.InstanceStateName;
+import com.amazonaws.services.ec2.model.InstanceStatus;
 import com.amazonaws.services.ec2.model.StartInstancesRequest;
 import com.amazonaws.services.ec2.model.StartInstancesResult;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.LambdaLogger;
+import com.amazonaws.services.lambda.runtime.events.SQSEvent;
 import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
-import com.amazonaws.services.sns.AmazonSNS;
-import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.AmazonSNSException;
-import com.amazonaws.services.sns.model.PublishRequest;
-import com.amazonaws.services.sns.model.PublishResult;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.awsclients.AwsClientRegistry;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * <p>
@@ -104,10 +115,45 @@ import java.util.Map;
  * The Lambda Function will restart the instance so it's running and notify any subscribers of the
  * actions.
  * </p>
+ * <p>
+ * Step 4 (Optional): An EC2 state-change event is about exactly one instance, so with the rule targeting the
+ * function directly every stopped instance costs an invocation of its own, each describing, waiting on and
+ * starting that one instance. When many instances can stop at once, make an SQS queue the rule's target
+ * instead, and have it trigger the function through {@link #handleQueuedEvents} with a batch size and a
+ * batching window, for example:
+ * </p>
+ *
+ * <pre>
+ *   Events:
+ *     StoppedInstances:
+ *       Type: SQS
+ *       Properties:
+ *         Queue: !GetAtt StoppedInstancesQueue.Arn
+ *         BatchSize: 100
+ *         MaximumBatchingWindowInSeconds: 20
+ * </pre>
+ * <p>
+ * (with Handler: org.example.events.&lt;YourFunctionName&gt;::handleQueuedEvents). The state changes that arrive
+ * within the window then reach one invocation, which restarts all of their instances with one round of
+ * describe calls and a single StartInstances call. The queue's visibility timeout has to be longer than the
+ * function's timeout.
+ * </p>
  */
 public class MonitoredInstanceEvent {
     private final String SNS_TOPIC_ARN = "arn:aws:sns:us-west-2:123456789123:yourTopicName";
     private final String INSTANCE_ID = "instance-id";
+    private static final String DIGEST_STORE = "/tmp/sns-digest";
+    private static final Duration DIGEST_WINDOW = Duration.ofMinutes(10);
+    private static final String DIGEST_KEY = "instance restarts";
+    private static final String INSTANCE_ARN_PATH = ":instance/";
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    // one describe or start call at a time
+    private static final int EC2_MAX_CONNECTIONS = 2;
+    private static final int MAX_DESCRIBE_INSTANCE_IDS = 100;
+    private static final long INITIAL_BACKOFF_MILLIS = 1_000;
+    private static final long MAX_BACKOFF_MILLIS = 8_000;
+    // left for starting the instances and notifying once the waiting is over
+    private static final long TIME_RESERVED_MILLIS = 5_000;
 
     /**
      * Lambda Function will handle the event from EventBridge when pattern details from
@@ -115,85 +161,182 @@ public class MonitoredInstanceEvent {
      * any downtime so if certain instance state details are met, we will activate a run command
      * for the monitoring instance and notify subscribers to the SNS topic.
      *
+     * An instance can't be started until it is fully stopped. Rather than firing StartInstances at a stopping
+     * instance and letting Lambda retry the whole invocation, the handler polls the instance's state with
+     * DescribeInstanceStatus, backing off exponentially (capped) while it is still stopping, and then starts it
+     * (see {@link #restartStoppedInstances}). An EC2 state-change event carries a single instance, so this
+     * handler restarts one instance per invocation; {@link #handleQueuedEvents} restarts the instances of many
+     * events together.
+     *
      * @param event {@link ScheduledEvent} notice what class handles EventBridge events
      * @param context {@link Context}
      *
      * @return {@link String}
      */
     public String handleRequest(ScheduledEvent event, Context context) {
+        // get instance ids and region (used to send ec2 start request)
+        return restartStoppedInstances(event.getRegion(), instanceIds(event.getDetail(), event.getResources()),
+                context);
+    }
 
-        LambdaLogger logger = context.getLogger();
-
-        Map<String, Object> details = event.getDetail();
-
-        // get instance-id and region (used to send ec2 start request)
-        String region = event.getRegion();
-        String instanceId = (String) details.get(INSTANCE_ID);
+    /**
+     * Handler for EC2 state-change events queued in SQS by the EventBridge rule (see Step 4). Collects the
+     * instances of every event in the batch and restarts them together, so a mass stop costs one invocation
+     * per batch rather than one per instance. A failure fails the whole batch and SQS redelivers it; instances
+     * restarted the first time are running by then and are left alone.
+     *
+     * @param event batch of queued EventBridge events
+     * @param context {@link Context}
+     *
+     * @return {@link String}
+     */
+    public String handleQueuedEvents(SQSEvent event, Context context) {
+        // region -> instance ids, a rule normally only sees its own region
+        Map<String, Set<String>> instanceIdsByRegion = new LinkedHashMap<>();
+        for (SQSEvent.SQSMessage message : event.getRecords()) {
+            JsonNode stateChange;
+            try {
+                stateChange = OBJECT_MAPPER.readTree(message.getBody());
+            } catch (IOException e) {
+                context.getLogger().log(String.format("Skipping message %s, not an EventBridge event: %s",
+                        message.getMessageId(), e.getMessage()));
+                continue;
+            }
+            List<String> resources = new ArrayList<>();
+            for (JsonNode resource : stateChange.path("resources")) {
+                resources.add(resource.asText());
+            }
+            Map<String, Object> detail = new LinkedHashMap<>();
+            if (stateChange.path("detail").path(INSTANCE_ID).isTextual()) {
+                detail.put(INSTANCE_ID, stateChange.path("detail").path(INSTANCE_ID).asText());
+            }
+            instanceIdsByRegion.computeIfAbsent(stateChange.path("region").asText(), region -> new LinkedHashSet<>())
+                    .addAll(instanceIds(detail, resources));
+        }
 
-        AmazonEC2 ec2Client = AmazonEC2Client.builder()
-                .withRegion(region)
-                .build();
+        for (Map.Entry<String, Set<String>> regionInstanceIds : instanceIdsByRegion.entrySet()) {
+            restartStoppedInstances(regionInstanceIds.getKey(), regionInstanceIds.getValue(), context);
+        }
+        return "success";
+    }
 
-        StartInstancesRequest startInstancesRequest = new StartInstancesRequest()
-                .withInstanceIds(instanceId);
+    /**
+     * Checks every given instance with batched DescribeInstanceStatus calls, backing off exponentially (capped)
+     * while any are still stopping, and starts all the stopped ones with a single StartInstances call. Instances
+     * that are still not stopped when the invocation is about to run out of time fail the invocation, so
+     * Lambda's retry picks them up.
+     */
+    private String restartStoppedInstances(String region, Set<String> pendingInstanceIds, Context context) {
 
-        /*
-         EC2 service will complain about the instance being in such a state that the instance can not be
-         started. We will handle this with a try block, ignoring the exception because Lambda will re-try
-         two more times as a default. This gives the instance enough time to update its state to a state
-         that allows our code to be processed. Our code is written so that if it is processed multiple
-         times, it won't affect the intended result of restarting the instance.
-         */
+        LambdaLogger logger = context.getLogger();
+        long deadline = System.currentTimeMillis() + context.getRemainingTimeInMillis() - TIME_RESERVED_MILLIS;
+        // shared with later warm invocations, see AwsClientRegistry
+        AmazonEC2 ec2Client = AwsClientRegistry.ec2(region, AwsClientRegistry.connections(EC2_MAX_CONNECTIONS));
+        // the SnsBatchPublisher for the region (and its SNS client) is kept between warm invocations as well
+        SnsBatchPublisher publisher = SnsBatchPublisher.forRegion(region);
+        SnsDigest digest = new SnsDigest(publisher, Paths.get(DIGEST_STORE), DIGEST_WINDOW);
+        // every invocation sends the digests that are due, not only the ones that restart something
+        digest.publishDue();
         try {
-            StartInstancesResult startInstancesResult = ec2Client.startInstances(startInstancesRequest);
-            String startingInstanceId = startInstancesResult.getStartingInstances()
-                    .get(0)
-                    .getInstanceId();
+            List<String> stoppedInstanceIds = new ArrayList<>();
+            long backoffMillis = INITIAL_BACKOFF_MILLIS;
+            while (true) {
+                for (InstanceStatus status : describeStatuses(ec2Client, pendingInstanceIds)) {
+                    String instanceId = status.getInstanceId();
+                    String state = status.getInstanceState().getName();
+                    if (InstanceStateName.Stopped.toString().equals(state)) {
+                        stoppedInstanceIds.add(instanceId);
+                        pendingInstanceIds.remove(instanceId);
+                    } else if (!InstanceStateName.Stopping.toString().equals(state)) {
+                        // running or pending needs nothing from us, shutting-down and terminated can't be started
+                        logger.log(String.format("Instance: '%s' is %s, not restarting it", instanceId, state));
+                        pendingInstanceIds.remove(instanceId);
+                    }
+                }
+                if (pendingInstanceIds.isEmpty() || System.currentTimeMillis() + backoffMillis > deadline) {
+                    break;
+                }
+                Thread.sleep(backoffMillis);
+                backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            }
 
-            if (startingInstanceId.equals(instanceId)) {
-                String restartNote = String.format("Instance: '%s' was shutdown...restarting", startingInstanceId);
+            if (!stoppedInstanceIds.isEmpty()) {
+                StartInstancesResult startInstancesResult = ec2Client.startInstances(new StartInstancesRequest()
+                        .withInstanceIds(stoppedInstanceIds));
+                List<String> startingInstanceIds = new ArrayList<>();
+                for (InstanceStateChange starting : startInstancesResult.getStartingInstances()) {
+                    startingInstanceIds.add(starting.getInstanceId());
+                }
+                String restartNote = String.format("Instances: %s were shutdown...restarting", startingInstanceIds);
                 logger.log(restartNote);
 
                 // attach SNS and send notification to admin or sys ops
-                PublishResult snsPublishResult = publishMessage(restartNote, region, logger);
-                if (snsPublishResult == null) {
-                    logger.log(String.format("Unable to send SNS notification for topic: %s", SNS_TOPIC_ARN));
-                }
+                publishMessage(digest, restartNote);
             }
-        } catch (AmazonClientException e) {
-            logger.log("Amazon State Exception is ignored, Instance will start up as planned on retry");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmazonClientException("Interrupted while waiting for instances to stop", e);
+        } finally {
+            int published = publisher.flush();
+            logger.log(String.format("Published %d notifications to topic: %s", published, SNS_TOPIC_ARN));
+        }
+
+        if (!pendingInstanceIds.isEmpty()) {
+            // fails the invocation on purpose, Lambda retries it and the retry only finds these still to do
+            throw new AmazonClientException("Instances still stopping, retrying later: " + pendingInstanceIds);
         }
-        ec2Client.shutdown();
         return "success";
     }
 
     /**
-     * This function will publish an SNS Notification to all subscribers to the given Topic Arn.
-     * @param message notification message
-     * @param region SNS topic region
-     * @param logger current {@link LambdaLogger}
-     *               
-     * @return {@link PublishResult}
+     * Instance ids of an event: the one in its details plus any in its resources (as instance ARNs).
      */
-    private PublishResult publishMessage(String message, String region, LambdaLogger logger) {
-        AmazonSNS snsClient = AmazonSNSClient.builder()
-                .withRegion(region)
-                .build();
-        try {
-            PublishRequest publishRequest = new PublishRequest()
-                    .withTopicArn(SNS_TOPIC_ARN)
-                    .withMessage(message);
-            
-            PublishResult publishResult = snsClient.publish(publishRequest);
-            snsClient.shutdown();          
-            return publishResult;
-            
-        } catch (AmazonSNSException e) {
-            logger.log(String.format("Unable to process notification for topic: %s", SNS_TOPIC_ARN));
-            if (snsClient != null) {
-                snsClient.shutdown();
+    private Set<String> instanceIds(Map<String, Object> detail, List<String> resources) {
+        Set<String> instanceIds = new LinkedHashSet<>();
+        Object detailInstanceId = detail == null ? null : detail.get(INSTANCE_ID);
+        if (detailInstanceId instanceof String) {
+            instanceIds.add((String) detailInstanceId);
+        }
+        if (resources != null) {
+            for (String resource : resources) {
+                int instancePath = resource.lastIndexOf(INSTANCE_ARN_PATH);
+                if (instancePath >= 0) {
+                    instanceIds.add(resource.substring(instancePath + INSTANCE_ARN_PATH.length()));
+                }
             }
         }
-        return null;
+        return instanceIds;
+    }
+
+    /**
+     * Status of every given instance, whatever its state, in as few calls as the per request limit allows.
+     */
+    private static List<InstanceStatus> describeStatuses(AmazonEC2 ec2Client, Set<String> instanceIds) {
+        List<InstanceStatus> statuses = new ArrayList<>();
+        List<String> ids = new ArrayList<>(instanceIds);
+        for (int from = 0; from < ids.size(); from += MAX_DESCRIBE_INSTANCE_IDS) {
+            DescribeInstanceStatusRequest request = new DescribeInstanceStatusRequest()
+                    .withInstanceIds(ids.subList(from, Math.min(from + MAX_DESCRIBE_INSTANCE_IDS, ids.size())))
+                    .withIncludeAllInstances(true);
+            DescribeInstanceStatusResult result;
+            do {
+                result = ec2Client.describeInstanceStatus(request);
+                statuses.addAll(result.getInstanceStatuses());
+                request.setNextToken(result.getNextToken());
+            } while (result.getNextToken() != null);
+        }
+        return statuses;
+    }
+
+    /**
+     * This function will publish an SNS Notification to all subscribers to the given Topic Arn, once the
+     * invocation flushes the digest's publisher. A restart is published right away unless another one was
+     * within DIGEST_WINDOW; the restarts that follow it within the window become one summary notification
+     * (see {@link SnsDigest#notifyFirstNow}), sent by the first invocation after the window is over.
+     * @param digest restart digest of the topic's region
+     * @param message notification message
+     */
+    private void publishMessage(SnsDigest digest, String message) {
+        digest.notifyFirstNow(SNS_TOPIC_ARN, DIGEST_KEY, SnsDigest.Severity.WARNING, message);
     }
 }
@@ -2,10 +2,15 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.Bucket;
-import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Prerequisites: 
@@ -18,9 +23,23 @@ import java.util.List;
  * In this example, we create an S3Client in US_WEST_2 region to find our aws-cloudtrail-logs bucket that 
  * contains the logs for any api calls, resources requested, updated, etc. to report bucket logs that take
  * up more than 1 kilobyte of storage and impacted resources in US_WEST_2 Region.
+ *
+ * The trail bucket can hold millions of objects, so rather than listing it from the top we use a
+ * {@link CloudTrailLogLister} to list only the US_WEST_2 folders for the last couple of days, in parallel and
+ * paged through to the end.
+ *
+ * Run with --incremental to only report logs delivered since the previous incremental run, see
+ * {@link CloudTrailWatermark}.
  */
 public class Main {
-    public static void main(String[] args) {
+    private static final int LOOKBACK_DAYS = 1;
+    private static final int LISTING_PARALLELISM = 8;
+    private static final String WATERMARK_FILE = "cloudtrail-examine-watermark.properties";
+
+    public static void main(String[] args) throws IOException {
+        CloudTrailWatermark watermark = Arrays.asList(args).contains("--incremental")
+                ? CloudTrailWatermark.load(Paths.get(WATERMARK_FILE))
+                : null;
         AmazonS3 amazonS3 = AmazonS3ClientBuilder.standard()
                 .withRegion(Regions.US_WEST_2)
                 .build();
@@ -38,12 +57,31 @@ public class Main {
             System.out.println("Couldn't find a bucket with Cloud Trail Logs");
             System.exit(1);
         }
-        ObjectListing bucketObjectListings = amazonS3.listObjects(cloudTrailBucket.getName());
-        for (S3ObjectSummary summary : bucketObjectListings.getObjectSummaries()) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        CloudTrailLogLister logLister = new CloudTrailLogLister(amazonS3, cloudTrailBucket.getName(), LISTING_PARALLELISM);
+        Consumer<S3ObjectSummary> printLargeLogs = summary -> {
             // print objects in US West 2 region over 1 kilobyte in size
-            if (summary.getKey().contains(Regions.US_WEST_2.getName()) && summary.getSize() >= 1024) {
+            if (summary.getSize() >= 1024) {
                 System.out.printf(summary.getKey() + " = %s\n", summary.getSize());
             }
+            if (watermark != null) {
+                watermark.completed(summary.getKey());
+            }
+        };
+        try {
+            for (String accountId : logLister.findAccountIds()) {
+                if (watermark != null) {
+                    logLister.listLogsSince(accountId, Regions.US_WEST_2.getName(), today.minusDays(LOOKBACK_DAYS),
+                            watermark, printLargeLogs);
+                } else {
+                    logLister.listLogs(accountId, Regions.US_WEST_2.getName(), today.minusDays(LOOKBACK_DAYS), today,
+                            printLargeLogs);
+                }
+            }
+        } finally {
+            if (watermark != null) {
+                watermark.save();
+            }
         }
     }
 }
@@ -0,0 +1,335 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.*;
+import org.awsclients.AwsClientRegistry;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fleet mode for {@link InstanceMetaData}: launches N instances of one AMI and instance type together and tracks
+ * all of them. Where InstanceMetaData makes a RunInstances call and a DescribeInstances call per instance,
+ * a fleet
+ * <ul>
+ *     <li>launches every instance in one RunInstances call, with min = max = N</li>
+ *     <li>polls the state of every tracked instance from a single background thread, with one DescribeInstances
+ *     call per {@link #MAX_FILTER_IDS} instances</li>
+ *     <li>hands out a future per instance that completes with its description once it is running, or
+ *     exceptionally if it is terminated on the way, or still can't be described after
+ *     {@link #MISSING_GRACE_MILLIS}</li>
+ * </ul>
+ * so bringing up 200 workers takes one launch and one describe call per poll, however many instances there are.
+ * The fleet covers its instances until they fail to come up or are {@link #release released}, whatever is
+ * released is the caller's and left out of {@link #allRunning}, {@link #getInstanceIds} and {@link #terminate}.
+ *
+ * <pre>
+ * try (InstanceFleet fleet = new InstanceFleet(InstanceType.T3Micro, "ami-0ee8244746ec5d6d4")) {
+ *     Map&lt;String, CompletableFuture&lt;Instance&gt;&gt; workers = fleet.launch(200);
+ *     fleet.allRunning().get(10, TimeUnit.MINUTES);
+ *     ...
+ *     fleet.terminate();
+ * }
+ * </pre>
+ */
+public class InstanceFleet implements AutoCloseable {
+    // per call limit of instance ids in DescribeInstances, StartInstances, StopInstances and TerminateInstances
+    public static final int MAX_DESCRIBE_IDS = 1000;
+    // ids per instance-id filter in the poll's DescribeInstances calls
+    public static final int MAX_FILTER_IDS = 200;
+    private static final long POLL_INTERVAL_MILLIS = 2000;
+    // how long a tracked instance may be missing from describe results before its wait fails, new instance ids
+    // take a moment to become visible to describe calls
+    public static final long MISSING_GRACE_MILLIS = 60_000;
+    private static final int EC2_MAX_CONNECTIONS = 4;
+
+    /**
+     * Instance state codes, see {@link InstanceMetaData#terminateInstance}.
+     */
+    public static final int PENDING = 0;
+    public static final int RUNNING = 16;
+    public static final int SHUTTING_DOWN = 32;
+    public static final int TERMINATED = 48;
+    public static final int STOPPING = 64;
+    public static final int STOPPED = 80;
+
+    private final AmazonEC2 ec2Client;
+    private final String ami;
+    private final InstanceType instanceType;
+    // instance id -> what it's being waited for
+    private final Map<String, Tracked> tracked = new ConcurrentHashMap<>();
+    // instance id -> its launch wait, for the instances launched by the fleet and neither released nor failed
+    private final Map<String, CompletableFuture<Instance>> launched = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService poller;
+
+    public InstanceFleet(InstanceType instanceType, String ami) {
+        this(AwsClientRegistry.ec2(Regions.US_WEST_2.getName(), AwsClientRegistry.connections(EC2_MAX_CONNECTIONS)),
+                instanceType, ami);
+    }
+
+    InstanceFleet(AmazonEC2 ec2Client, InstanceType instanceType, String ami) {
+        this.ec2Client = ec2Client;
+        this.ami = ami == null ? "ami-0ee8244746ec5d6d4" : ami;
+        this.instanceType = instanceType == null ? InstanceType.T1Micro : instanceType;
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "instance-fleet-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.poller.scheduleWithFixedDelay(this::poll, POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Launches count instances in one RunInstances call. EC2 launches either all of them or none, a launch it
+     * can't fulfil throws.
+     *
+     * @return a future per launched instance id, in launch order, completing once the instance is running
+     */
+    public Map<String, CompletableFuture<Instance>> launch(int count) {
+        return launch(count, Collections.emptyList());
+    }
+
+    /**
+     * Same as {@link #launch(int)}, with tags put on every instance as part of the launch.
+     */
+    public Map<String, CompletableFuture<Instance>> launch(int count, List<Tag> tags) {
+        RunInstancesRequest runInstancesRequest = new RunInstancesRequest(this.ami, count, count)
+                .withInstanceType(this.instanceType);
+        if (!tags.isEmpty()) {
+            runInstancesRequest.withTagSpecifications(new TagSpecification()
+                    .withResourceType(ResourceType.Instance)
+                    .withTags(tags));
+        }
+        RunInstancesResult runInstancesResult = this.ec2Client.runInstances(runInstancesRequest);
+
+        Map<String, CompletableFuture<Instance>> futures = new LinkedHashMap<>();
+        for (Instance instance : runInstancesResult.getReservation().getInstances()) {
+            String instanceId = instance.getInstanceId();
+            CompletableFuture<Instance> running = track(instanceId, RUNNING);
+            this.launched.put(instanceId, running);
+            running.whenComplete((described, e) -> {
+                // a cancelled wait was only replaced (or given up by close), the instance may still come up
+                if (e != null && !(e instanceof CancellationException)) {
+                    this.launched.remove(instanceId, running);
+                }
+            });
+            futures.put(instanceId, running);
+        }
+        System.out.printf("launched %d instances of %s%n", futures.size(), this.ami);
+        return futures;
+    }
+
+    /**
+     * Waits for instanceId to reach stateCode on the next polls. Only one wait per instance: tracking an instance
+     * again replaces its earlier wait, which is cancelled.
+     *
+     * @return a future completing with the instance's description once it's in stateCode, or exceptionally
+     * if it's terminated (or shutting down) before that, or if it isn't found for {@link #MISSING_GRACE_MILLIS}
+     */
+    public CompletableFuture<Instance> track(String instanceId, int stateCode) {
+        Tracked wait = new Tracked(stateCode);
+        Tracked replaced = this.tracked.put(instanceId, wait);
+        if (replaced != null) {
+            replaced.future.cancel(false);
+        }
+        return wait.future;
+    }
+
+    /**
+     * Stops waiting on instanceId, its wait (if there is one) is cancelled.
+     */
+    public void untrack(String instanceId) {
+        Tracked wait = this.tracked.remove(instanceId);
+        if (wait != null) {
+            wait.future.cancel(false);
+        }
+    }
+
+    /**
+     * Hands instanceId over to the caller: the fleet stops covering it in {@link #allRunning},
+     * {@link #getInstanceIds} and {@link #terminate}. A wait on it that is still open carries on.
+     */
+    public void release(String instanceId) {
+        this.launched.remove(instanceId);
+    }
+
+    /**
+     * A future completing once every instance launched by this fleet (and not released) is running, or
+     * exceptionally as soon as one of them fails to. Instances that failed before the call are already out of
+     * the fleet, their launch futures report them.
+     */
+    public CompletableFuture<Void> allRunning() {
+        CompletableFuture<Void> all = CompletableFuture.allOf(this.launched.values().toArray(new CompletableFuture[0]));
+        this.launched.values().forEach(future -> future.whenComplete((instance, e) -> {
+            if (e != null) {
+                all.completeExceptionally(e);
+            }
+        }));
+        return all;
+    }
+
+    public List<String> getInstanceIds() {
+        return new ArrayList<>(this.launched.keySet());
+    }
+
+    public String getAmi() {
+        return this.ami;
+    }
+
+    public InstanceType getInstanceType() {
+        return this.instanceType;
+    }
+
+    /**
+     * Starts instanceIds in as few calls as possible.
+     */
+    public void start(Collection<String> instanceIds) {
+        for (List<String> chunk : chunks(instanceIds)) {
+            this.ec2Client.startInstances(new StartInstancesRequest().withInstanceIds(chunk));
+        }
+    }
+
+    /**
+     * Stops instanceIds in as few calls as possible.
+     */
+    public void stop(Collection<String> instanceIds) {
+        for (List<String> chunk : chunks(instanceIds)) {
+            this.ec2Client.stopInstances(new StopInstancesRequest().withInstanceIds(chunk));
+        }
+    }
+
+    /**
+     * Terminates every instance launched by this fleet that wasn't released and stops waiting on them.
+     */
+    public void terminate() {
+        List<String> instanceIds = getInstanceIds();
+        for (List<String> chunk : chunks(instanceIds)) {
+            TerminateInstancesResult terminateInstancesResult = this.ec2Client.terminateInstances(
+                    new TerminateInstancesRequest().withInstanceIds(chunk));
+            System.out.printf("terminating %d instances%n", terminateInstancesResult.getTerminatingInstances().size());
+        }
+        for (String instanceId : instanceIds) {
+            this.launched.remove(instanceId);
+            untrack(instanceId);
+        }
+    }
+
+    /**
+     * Stops polling. Instances are left as they are, and waits that are still open are cancelled.
+     */
+    @Override
+    public void close() {
+        this.poller.shutdownNow();
+        this.tracked.values().forEach(wait -> wait.future.cancel(false));
+        this.tracked.clear();
+    }
+
+    /**
+     * One poll: describes every tracked instance and completes the waits whose instance got where it was going.
+     * The instances are looked up through an instance-id filter rather than by id, so an id that isn't visible yet
+     * (or anymore) leaves it out of the result instead of failing the call for the whole chunk. Waits whose
+     * instance stays out of the results for longer than {@link #MISSING_GRACE_MILLIS} fail.
+     */
+    private void poll() {
+        if (this.tracked.isEmpty()) {
+            return;
+        }
+        for (List<String> chunk : chunks(this.tracked.keySet(), MAX_FILTER_IDS)) {
+            try {
+                DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest()
+                        .withFilters(new Filter("instance-id", chunk));
+                Set<String> described = new HashSet<>();
+                do {
+                    DescribeInstancesResult describeInstancesResult = this.ec2Client.describeInstances(
+                            describeInstancesRequest);
+                    for (Reservation reservation : describeInstancesResult.getReservations()) {
+                        for (Instance instance : reservation.getInstances()) {
+                            described.add(instance.getInstanceId());
+                            update(instance);
+                        }
+                    }
+                    describeInstancesRequest.setNextToken(describeInstancesResult.getNextToken());
+                } while (describeInstancesRequest.getNextToken() != null);
+                failMissing(chunk, described);
+            } catch (AmazonServiceException e) {
+                System.out.printf("Unable to describe %d instances: %s%n", chunk.size(), e.getErrorMessage());
+            } catch (RuntimeException e) {
+                // an exception would cancel the scheduled poll for good
+                System.out.printf("Unable to describe %d instances: %s%n", chunk.size(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Fails the waits on the ids of chunk that weren't described and have been waited on for longer than
+     * {@link #MISSING_GRACE_MILLIS}.
+     */
+    private void failMissing(List<String> chunk, Set<String> described) {
+        long now = System.currentTimeMillis();
+        for (String instanceId : chunk) {
+            Tracked wait = this.tracked.get(instanceId);
+            if (wait == null || described.contains(instanceId) || now - wait.since < MISSING_GRACE_MILLIS) {
+                continue;
+            }
+            if (this.tracked.remove(instanceId, wait)) {
+                wait.future.completeExceptionally(new IllegalStateException(String.format(
+                        "Instance %s not found after %d ms", instanceId, now - wait.since)));
+            }
+        }
+    }
+
+    private void update(Instance instance) {
+        Tracked wait = this.tracked.get(instance.getInstanceId());
+        if (wait == null) {
+            return;
+        }
+        // the high byte of the code is internal to EC2
+        int code = instance.getState().getCode() & 0xff;
+        if (code == wait.stateCode) {
+            this.tracked.remove(instance.getInstanceId(), wait);
+            wait.future.complete(instance);
+        } else if (code == TERMINATED || (code == SHUTTING_DOWN && wait.stateCode != TERMINATED)) {
+            this.tracked.remove(instance.getInstanceId(), wait);
+            StateReason reason = instance.getStateReason();
+            wait.future.completeExceptionally(new IllegalStateException(String.format("Instance %s is %s: %s",
+                    instance.getInstanceId(), instance.getState().getName(),
+                    reason == null ? "no reason given" : reason.getMessage())));
+        }
+    }
+
+    private static List<List<String>> chunks(Collection<String> instanceIds) {
+        return chunks(instanceIds, MAX_DESCRIBE_IDS);
+    }
+
+    private static List<List<String>> chunks(Collection<String> instanceIds, int size) {
+        List<String> ids = new ArrayList<>(instanceIds);
+        List<List<String>> chunks = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += size) {
+            chunks.add(ids.subList(start, Math.min(ids.size(), start + size)));
+        }
+        return chunks;
+    }
+
+    private static final class Tracked {
+        private final int stateCode;
+        private final long since = System.currentTimeMillis();
+        private final CompletableFuture<Instance> future = new CompletableFuture<>();
+
+        private Tracked(int stateCode) {
+            this.stateCode = stateCode;
+        }
+    }
+}
@@ -0,0 +1,379 @@
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.ec2.AmazonEC2;
+import com.amazonaws.services.ec2.model.*;
+import org.awsclients.AwsClientRegistry;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm pool of stopped instances for one AMI and instance type. A cold RunInstances and first boot is the
+ * slowest step of scaling out, starting an instance that has already booted once and was then stopped is a lot
+ * faster. The pool
+ * <ul>
+ *     <li>launches instances ahead of time, lets them run for a warm up period (user data, agents, caches) and
+ *     stops them</li>
+ *     <li>hands one out on {@link #acquire} by starting it, falling back to a cold launch when the pool is
+ *     empty</li>
+ *     <li>refills itself in the background after every hand out, up to its configured size</li>
+ * </ul>
+ * Pool instances are tagged with {@link #POOL_TAG} (ami/instance type) and {@link #STATUS_TAG}, so a new pool for
+ * the same AMI and instance type picks up the stopped instances an earlier one left. Tags are removed from an
+ * instance when it's handed out, from then on it's an ordinary instance of the caller's.
+ *
+ * Only one pool per AMI and instance type may be open at a time. Opening a second one in the same JVM throws,
+ * across JVMs {@link #acquire} re-describes an instance right before starting it and skips it if it's no longer
+ * stopped and available, which narrows (but can't close) the window in which two pools take the same instance.
+ *
+ * <pre>
+ * try (InstanceWarmPool pool = new InstanceWarmPool(InstanceType.T3Micro, "ami-0ee8244746ec5d6d4", 10,
+ *         Duration.ofMinutes(5))) {
+ *     Instance worker = pool.acquire().get(5, TimeUnit.MINUTES);
+ *     ...
+ * }
+ * </pre>
+ */
+public class InstanceWarmPool implements AutoCloseable {
+    public static final String POOL_TAG = "warm-pool";
+    public static final String STATUS_TAG = "warm-pool-status";
+    private static final String WARMING = "warming";
+    private static final String AVAILABLE = "available";
+    private static final int EC2_MAX_CONNECTIONS = 4;
+    // errors after which a pool instance can't be started at all, anything else (throttling, no capacity for the
+    // type right now, ...) leaves it in the pool for a later hand out
+    private static final Set<String> UNUSABLE_INSTANCE_ERRORS = new HashSet<>(Arrays.asList(
+            "InvalidInstanceID.NotFound", "IncorrectInstanceState", "UnsupportedOperation"));
+    private static final String THROTTLED = "RequestLimitExceeded";
+    // keys of the pools open in this JVM
+    private static final Set<String> OPEN_POOLS = ConcurrentHashMap.newKeySet();
+
+    private final AmazonEC2 ec2Client;
+    private final InstanceFleet fleet;
+    private final String poolKey;
+    private final int size;
+    private final Duration warmUp;
+    // ids of stopped instances ready to be handed out
+    private final Queue<String> available = new ConcurrentLinkedQueue<>();
+    // ids of instances launched or stopping that aren't available yet
+    private final Set<String> warming = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService refiller;
+    private volatile boolean closed;
+
+    /**
+     * @param size   number of stopped instances to keep
+     * @param warmUp how long a new instance runs before it's stopped and added to the pool
+     */
+    public InstanceWarmPool(InstanceType instanceType, String ami, int size, Duration warmUp) {
+        this(AwsClientRegistry.ec2(Regions.US_WEST_2.getName(), AwsClientRegistry.connections(EC2_MAX_CONNECTIONS)),
+                instanceType, ami, size, warmUp);
+    }
+
+    InstanceWarmPool(AmazonEC2 ec2Client, InstanceType instanceType, String ami, int size, Duration warmUp) {
+        this.ec2Client = ec2Client;
+        this.fleet = new InstanceFleet(ec2Client, instanceType, ami);
+        this.poolKey = this.fleet.getAmi() + "/" + this.fleet.getInstanceType();
+        if (!OPEN_POOLS.add(this.poolKey)) {
+            this.fleet.close();
+            throw new IllegalStateException("A warm pool for " + this.poolKey + " is already open");
+        }
+        this.size = size;
+        this.warmUp = warmUp;
+        this.refiller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "instance-warm-pool-refiller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            adoptExisting();
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+        this.refiller.execute(this::refill);
+    }
+
+    /**
+     * Takes a stopped instance out of the pool and starts it, or launches a new one if the pool is empty. Either
+     * way the pool is refilled in the background.
+     *
+     * @return a future completing with the instance's description once it's running
+     */
+    public CompletableFuture<Instance> acquire() {
+        if (this.closed) {
+            throw new IllegalStateException("Warm pool " + this.poolKey + " is closed");
+        }
+        List<String> notStarted = new ArrayList<>();
+        try {
+            String instanceId;
+            while ((instanceId = this.available.poll()) != null) {
+                CompletableFuture<Instance> running = this.fleet.track(instanceId, InstanceFleet.RUNNING);
+                try {
+                    if (!isStillAvailable(instanceId)) {
+                        // taken by another pool, or stopped being usable since it joined this one
+                        this.fleet.untrack(instanceId);
+                        this.fleet.release(instanceId);
+                        System.out.printf("warm instance %s is no longer available, skipping it%n", instanceId);
+                        continue;
+                    }
+                    // tags go first, so the instance doesn't look available to another pool while it's starting
+                    this.ec2Client.deleteTags(new DeleteTagsRequest()
+                            .withResources(instanceId)
+                            .withTags(new Tag(POOL_TAG), new Tag(STATUS_TAG)));
+                    this.fleet.start(Collections.singletonList(instanceId));
+                    this.fleet.release(instanceId);
+                    System.out.printf("starting warm instance with id: '%s'%n", instanceId);
+                    return running;
+                } catch (AmazonServiceException e) {
+                    this.fleet.untrack(instanceId);
+                    System.out.printf("Unable to start warm instance %s: %s %s%n", instanceId, e.getErrorCode(),
+                            e.getErrorMessage());
+                    if (UNUSABLE_INSTANCE_ERRORS.contains(e.getErrorCode())) {
+                        terminate(instanceId);
+                        continue;
+                    }
+                    // the instance is fine, it goes back once this hand out is over
+                    notStarted.add(instanceId);
+                    if (THROTTLED.equals(e.getErrorCode())) {
+                        // every other instance (and a cold launch) would be throttled just the same
+                        throw e;
+                    }
+                    // e.g. no capacity for the type right now, try the next one, it may be in another zone
+                }
+            }
+            System.out.printf("warm pool %s is empty, launching a new instance%n", this.poolKey);
+            Map<String, CompletableFuture<Instance>> launched = this.fleet.launch(1);
+            launched.keySet().forEach(this.fleet::release);
+            return launched.values().iterator().next();
+        } finally {
+            notStarted.forEach(this::returnToPool);
+            this.refiller.execute(this::refill);
+        }
+    }
+
+    /**
+     * Number of stopped instances ready to be handed out.
+     */
+    public int getAvailable() {
+        return this.available.size();
+    }
+
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Stops refilling and polling. Stopped instances stay in place for the next pool, see {@link #drain}.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.refiller.shutdownNow();
+        this.fleet.close();
+        OPEN_POOLS.remove(this.poolKey);
+    }
+
+    /**
+     * Closes the pool and terminates its instances, the available ones as well as the ones still launching or
+     * warming up.
+     */
+    public void drain() {
+        close();
+        List<String> instanceIds = new ArrayList<>(this.available);
+        instanceIds.addAll(this.warming);
+        this.available.clear();
+        this.warming.clear();
+        for (int start = 0; start < instanceIds.size(); start += InstanceFleet.MAX_DESCRIBE_IDS) {
+            List<String> chunk = instanceIds.subList(start, Math.min(instanceIds.size(),
+                    start + InstanceFleet.MAX_DESCRIBE_IDS));
+            this.ec2Client.terminateInstances(new TerminateInstancesRequest().withInstanceIds(chunk));
+        }
+        System.out.printf("terminating %d warm instances%n", instanceIds.size());
+    }
+
+    /**
+     * Launches instances for whatever the pool is short of, in one call.
+     */
+    private void refill() {
+        if (this.closed) {
+            return;
+        }
+        int missing = this.size - this.available.size() - this.warming.size();
+        if (missing <= 0) {
+            return;
+        }
+        try {
+            Map<String, CompletableFuture<Instance>> launched = this.fleet.launch(missing, Arrays.asList(
+                    new Tag(POOL_TAG, this.poolKey), new Tag(STATUS_TAG, WARMING)));
+            this.warming.addAll(launched.keySet());
+            launched.forEach((instanceId, running) -> running.whenComplete((instance, e) -> {
+                if (e != null) {
+                    warmUpFailed(instanceId, e);
+                } else {
+                    this.refiller.schedule(() -> stopWarmedUp(instanceId), this.warmUp.toMillis(),
+                            TimeUnit.MILLISECONDS);
+                }
+            }));
+        } catch (AmazonServiceException e) {
+            // the next hand out tries again
+            System.out.printf("Unable to refill warm pool %s: %s%n", this.poolKey, e.getErrorMessage());
+        }
+    }
+
+    private void stopWarmedUp(String instanceId) {
+        try {
+            CompletableFuture<Instance> stopped = this.fleet.track(instanceId, InstanceFleet.STOPPED);
+            this.fleet.stop(Collections.singletonList(instanceId));
+            stopped.whenComplete((instance, e) -> {
+                if (e != null) {
+                    warmUpFailed(instanceId, e);
+                } else {
+                    makeAvailable(instanceId);
+                }
+            });
+        } catch (AmazonServiceException e) {
+            warmUpFailed(instanceId, e);
+        }
+    }
+
+    private void makeAvailable(String instanceId) {
+        try {
+            this.ec2Client.createTags(new CreateTagsRequest()
+                    .withResources(instanceId)
+                    .withTags(new Tag(STATUS_TAG, AVAILABLE)));
+            this.available.add(instanceId);
+            System.out.printf("warm instance with id: '%s' is available%n", instanceId);
+        } catch (AmazonServiceException e) {
+            warmUpFailed(instanceId, e);
+            return;
+        }
+        this.warming.remove(instanceId);
+    }
+
+    /**
+     * Puts an instance that couldn't be started back in the pool, tags and all.
+     */
+    private void returnToPool(String instanceId) {
+        try {
+            this.ec2Client.createTags(new CreateTagsRequest()
+                    .withResources(instanceId)
+                    .withTags(new Tag(POOL_TAG, this.poolKey), new Tag(STATUS_TAG, AVAILABLE)));
+        } catch (AmazonServiceException e) {
+            // it's still in this pool, only a later pool won't adopt it
+            System.out.printf("Unable to tag warm instance %s: %s%n", instanceId, e.getErrorMessage());
+        }
+        this.available.add(instanceId);
+    }
+
+    /**
+     * Gives up on an instance that didn't make it into the pool, the next refill replaces it.
+     */
+    private void warmUpFailed(String instanceId, Throwable e) {
+        if (this.closed || e instanceof CancellationException) {
+            // the wait was given up by close(), the instance is left for the next pool to adopt (or for drain)
+            return;
+        }
+        this.warming.remove(instanceId);
+        System.out.printf("Unable to warm up instance %s: %s%n", instanceId, e.getMessage());
+        terminate(instanceId);
+    }
+
+    private void terminate(String instanceId) {
+        this.fleet.release(instanceId);
+        try {
+            this.ec2Client.terminateInstances(new TerminateInstancesRequest().withInstanceIds(instanceId));
+        } catch (AmazonServiceException e) {
+            System.out.printf("Unable to terminate instance %s: %s%n", instanceId, e.getErrorMessage());
+        }
+    }
+
+    /**
+     * Whether instanceId is still a stopped, available instance of this pool, described right now rather than
+     * taken from what the pool last saw.
+     */
+    private boolean isStillAvailable(String instanceId) {
+        DescribeInstancesResult describeInstancesResult = this.ec2Client.describeInstances(
+                new DescribeInstancesRequest().withInstanceIds(instanceId));
+        for (Reservation reservation : describeInstancesResult.getReservations()) {
+            for (Instance instance : reservation.getInstances()) {
+                boolean inPool = instance.getTags().stream()
+                        .anyMatch(tag -> POOL_TAG.equals(tag.getKey()) && this.poolKey.equals(tag.getValue()));
+                boolean isAvailable = instance.getTags().stream()
+                        .anyMatch(tag -> STATUS_TAG.equals(tag.getKey()) && AVAILABLE.equals(tag.getValue()));
+                int code = instance.getState().getCode() & 0xff;
+                return inPool && isAvailable && code == InstanceFleet.STOPPED;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Picks up the instances of an earlier pool for the same AMI and instance type: stopped available ones join
+     * the pool, warming ones are finished off.
+     */
+    private void adoptExisting() {
+        DescribeInstancesRequest describeInstancesRequest = new DescribeInstancesRequest()
+                .withFilters(new Filter("tag:" + POOL_TAG, Collections.singletonList(this.poolKey)),
+                        new Filter("instance-state-name", Arrays.asList("pending", "running", "stopping",
+                                "stopped")));
+        do {
+            DescribeInstancesResult describeInstancesResult = this.ec2Client.describeInstances(describeInstancesRequest);
+            for (Reservation reservation : describeInstancesResult.getReservations()) {
+                for (Instance instance : reservation.getInstances()) {
+                    adopt(instance);
+                }
+            }
+            describeInstancesRequest.setNextToken(describeInstancesResult.getNextToken());
+        } while (describeInstancesRequest.getNextToken() != null);
+        System.out.printf("warm pool %s has %d available and %d warming instances%n", this.poolKey,
+                this.available.size(), this.warming.size());
+    }
+
+    private void adopt(Instance instance) {
+        String instanceId = instance.getInstanceId();
+        boolean isAvailable = instance.getTags().stream()
+                .anyMatch(tag -> STATUS_TAG.equals(tag.getKey()) && AVAILABLE.equals(tag.getValue()));
+        int code = instance.getState().getCode() & 0xff;
+        if (code == InstanceFleet.STOPPED && isAvailable) {
+            this.available.add(instanceId);
+            return;
+        }
+        this.warming.add(instanceId);
+        if (code == InstanceFleet.STOPPED || code == InstanceFleet.STOPPING) {
+            this.fleet.track(instanceId, InstanceFleet.STOPPED).whenComplete((stopped, e) -> {
+                if (e != null) {
+                    warmUpFailed(instanceId, e);
+                } else {
+                    makeAvailable(instanceId);
+                }
+            });
+        } else {
+            // pending or running: it never got to finish its warm up, give it the whole period again
+            this.fleet.track(instanceId, InstanceFleet.RUNNING).whenComplete((running, e) -> {
+                if (e != null) {
+                    warmUpFailed(instanceId, e);
+                } else {
+                    this.refiller.schedule(() -> stopWarmedUp(instanceId), this.warmUp.toMillis(),
+                            TimeUnit.MILLISECONDS);
+                }
+            });
+        }
+    }
+}
@@ -2,15 +2,16 @@ import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.Arrays;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * Prerequisites:
@@ -29,13 +30,60 @@ import java.util.zip.GZIPInputStream;
  * exchanging information. We could do many things with this information such as building notifications, 
  * alerts, analytics and much more. So, how are we supposed to actually read a gzip file!? Java solves this 
  * small problem with GZIPInputStreams!
+ *
+ * Log files can get big, so instead of reading the whole file into one JSON object we stream it with a
+ * {@link CloudTrailEventReader} and print one event at a time. Every matching log is processed, not just
+ * the first one: logs go through a {@link CloudTrailPipeline} as soon as they are listed, which downloads
+ * and parses many of them at once so we aren't waiting on S3 for one log after another.
+ *
+ * Run with --incremental to only process logs delivered since the previous incremental run. The last fully
+ * processed key per region is kept in a {@link CloudTrailWatermark} file and listing starts after it.
+ *
+ * Run with --index to also add every event to a local {@link CloudTrailEventIndex}, so later questions about
+ * the same events can be answered from disk without going back to S3.
+ *
+ * Run with --aggregate to count the events as they go by (see {@link CloudTrailAggregator}) and print the
+ * busiest event names, callers, failing callers and minutes at the end.
+ *
+ * Run with --filter followed by a {@link CloudTrailFilter} expression, e.g.
+ * --filter "eventSource == s3.amazonaws.com &amp;&amp; errorCode != null", to only process matching events. The
+ * filter is checked while events are parsed, and fields missing from an event are known from CloudTrail's field
+ * order, so for filters on the fields up to errorMessage (eventSource, eventName, userIdentity, errorCode, ...)
+ * events that don't match are mostly skipped rather than built. A filter on fields that come after
+ * requestParameters and responseElements still has those buffered for every event.
+ *
+ * Run with --dedupe to pass every eventID on only once, even across runs over overlapping ranges, see
+ * {@link CloudTrailDeduplicator}.
+ *
+ * Run with --export to also write the events to a day partitioned columnar copy (see
+ * {@link CloudTrailColumnStore}) that long range analytics can scan without parsing JSON again.
  */
 public class Main {
     public static final String CLOUD_TRAIL_LOGS = "aws-cloudtrail-logs";
+    private static final int LOOKBACK_DAYS = 1;
+    private static final int LISTING_PARALLELISM = 8;
+    private static final int DOWNLOAD_THREADS = 16;
+    private static final int PARSE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_IN_FLIGHT_LOGS = 64;
+    private static final String WATERMARK_FILE = "cloudtrail-watermark.properties";
+    private static final String INDEX_DIRECTORY = "cloudtrail-index";
+    private static final int TOP_N = 10;
+    private static final String DEDUP_DIRECTORY = "cloudtrail-dedup";
+    private static final long EXPECTED_EVENT_IDS = 100_000_000;
+    private static final double DEDUP_FALSE_POSITIVE_RATE = 0.01;
+    private static final String EXPORT_DIRECTORY = "cloudtrail-columns";
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        CloudTrailWatermark watermark = Arrays.asList(args).contains("--incremental")
+                ? CloudTrailWatermark.load(Paths.get(WATERMARK_FILE))
+                : null;
+        boolean buildIndex = Arrays.asList(args).contains("--index");
+        String filterExpression = optionValue(args, "--filter");
+        CloudTrailFilter filter = filterExpression != null ? CloudTrailFilter.parse(filterExpression) : null;
+        CloudTrailAggregator.PerThread aggregation = Arrays.asList(args).contains("--aggregate")
+                ? new CloudTrailAggregator.PerThread()
+                : null;
         Bucket cloudTrailBucket = null;
-        JSONObject cloudTrailLogJSON = null;
         AmazonS3 amazonS3 = AmazonS3ClientBuilder.standard()
                 .withRegion(Regions.US_WEST_2)
                 .build();
@@ -47,61 +95,127 @@ public class Main {
         }
 
         if (cloudTrailBucket != null) {
-            List<S3ObjectSummary> logSummaries = getUsWestLogSummaries(amazonS3, cloudTrailBucket);
-            if (logSummaries.size() > 0) {
-                cloudTrailLogJSON = getLogJsonFromGZIP(amazonS3, cloudTrailBucket, logSummaries);
-            }
-        }
+            CloudTrailEventIndex.Writer indexWriter = buildIndex
+                    ? CloudTrailEventIndex.openWriter(Paths.get(INDEX_DIRECTORY))
+                    : null;
+            CloudTrailColumnStore.Writer exportWriter = Arrays.asList(args).contains("--export")
+                    ? CloudTrailColumnStore.openWriter(Paths.get(EXPORT_DIRECTORY))
+                    : null;
+            CloudTrailDeduplicator deduplicator = Arrays.asList(args).contains("--dedupe")
+                    ? CloudTrailDeduplicator.open(Paths.get(DEDUP_DIRECTORY), EXPECTED_EVENT_IDS,
+                    DEDUP_FALSE_POSITIVE_RATE)
+                    : null;
+            CloudTrailPipeline.LogEventSink sink = new CloudTrailPipeline.LogEventSink() {
+                @Override
+                public void onEvent(String logKey, int eventIndex, ObjectNode event) {
+                    printLogEvent(logKey, eventIndex, event);
+                    if (indexWriter != null) {
+                        indexWriter.add(logKey, eventIndex, event);
+                    }
+                    if (aggregation != null) {
+                        aggregation.onEvent(logKey, eventIndex, event);
+                    }
+                    if (exportWriter != null) {
+                        exportWriter.onEvent(logKey, eventIndex, event);
+                    }
+                }
 
-        // pretty print the log in json format
-        if (cloudTrailLogJSON != null && !cloudTrailLogJSON.isEmpty()) {
-            System.out.println(cloudTrailLogJSON.toString(2));
+                @Override
+                public void onLogComplete(String logKey) {
+                    if (watermark != null) {
+                        watermark.completed(logKey);
+                    }
+                }
+            };
+            if (deduplicator != null) {
+                sink = deduplicator.filter(sink);
+            }
+            // the index and export writers and the deduplicator are closed (and their last files written) before
+            // the watermark is saved, so the watermark never moves past logs whose events aren't on disk yet
+            try (CloudTrailEventIndex.Writer ignoredIndex = indexWriter;
+                 CloudTrailColumnStore.Writer ignoredExport = exportWriter;
+                 CloudTrailDeduplicator ignoredDeduplicator = deduplicator;
+                 CloudTrailPipeline pipeline = new CloudTrailPipeline(amazonS3, cloudTrailBucket.getName(),
+                    sink, filter, DOWNLOAD_THREADS, PARSE_THREADS, MAX_IN_FLIGHT_LOGS)) {
+                listUsWestLogs(amazonS3, cloudTrailBucket, watermark, pipeline::submit);
+                pipeline.finish();
+            } finally {
+                // whatever did finish is kept even if the run failed part way
+                if (watermark != null) {
+                    watermark.save();
+                }
+            }
+            if (deduplicator != null) {
+                System.out.printf("Skipped %d duplicate events\n", deduplicator.getDuplicates());
+            }
+            if (aggregation != null) {
+                printAggregates(aggregation.merged());
+            }
         }
     }
 
-    private static List<S3ObjectSummary> getUsWestLogSummaries(AmazonS3 amazonS3, Bucket cloudTrailBucket) {
+    private static void listUsWestLogs(AmazonS3 amazonS3, Bucket cloudTrailBucket, CloudTrailWatermark watermark,
+                                       Consumer<S3ObjectSummary> logConsumer) {
         if (cloudTrailBucket != null) {
             System.out.printf("Found Cloud Trail Log Bucket: %s", cloudTrailBucket.getName());
         } else {
             System.out.println("Couldn't find a bucket with Cloud Trail Logs");
             System.exit(1);
         }
-        List<S3ObjectSummary> logSummaries = new ArrayList<>();
-        ObjectListing bucketObjectListings = amazonS3.listObjects(cloudTrailBucket.getName());
-        for (S3ObjectSummary summary : bucketObjectListings.getObjectSummaries()) {
-            // print objects in US West 2 region over 1 kilobyte in size
-            if (summary.getKey().contains(Regions.US_WEST_2.getName()) && summary.getSize() >= 1024) {
-                logSummaries.add(summary);
+        // only the US West 2 folders for the last couple of days are listed, see CloudTrailLogLister
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        CloudTrailLogLister logLister = new CloudTrailLogLister(amazonS3, cloudTrailBucket.getName(), LISTING_PARALLELISM);
+        Consumer<S3ObjectSummary> largeLogs = summary -> {
+            // process objects in US West 2 region over 1 kilobyte in size
+            if (summary.getSize() >= 1024) {
                 System.out.printf(summary.getKey() + " = %s\n", summary.getSize());
+                logConsumer.accept(summary);
+            } else if (watermark != null) {
+                watermark.completed(summary.getKey());
+            }
+        };
+        for (String accountId : logLister.findAccountIds()) {
+            if (watermark != null) {
+                logLister.listLogsSince(accountId, Regions.US_WEST_2.getName(), today.minusDays(LOOKBACK_DAYS),
+                        watermark, largeLogs);
+            } else {
+                logLister.listLogs(accountId, Regions.US_WEST_2.getName(), today.minusDays(LOOKBACK_DAYS), today,
+                        largeLogs);
             }
         }
-        return logSummaries;
     }
 
-    private static JSONObject getLogJsonFromGZIP(AmazonS3 amazonS3, Bucket cloudTrailBucket, List<S3ObjectSummary> logSummaries) {
-        S3Object log = amazonS3.getObject(cloudTrailBucket.getName(), logSummaries.get(0).getKey());
-        ObjectMetadata logMetaData = log.getObjectMetadata();
-
-        System.out.printf("logencoding=%s,logContentType=%s,KMSKeyId=%s\n", logMetaData.getContentEncoding(),
-                logMetaData.getContentType(), logMetaData.getSSEAwsKmsKeyId());
-
-        // cloud trail log files will be gzip encoded with json content type. Luckily Java has a solution for this
-        S3ObjectInputStream logStream = log.getObjectContent();
-        JSONObject logJson = null;
-        try {
-            BufferedReader logReader = new BufferedReader(new InputStreamReader(new GZIPInputStream(logStream)));
-            StringBuilder logBuilder = new StringBuilder();
-            String line = logReader.readLine();
-            while (line != null) {
-                logBuilder.append(line);
-                line = logReader.readLine();
+    /**
+     * Value given after option on the command line, or null if the option isn't there.
+     */
+    private static String optionValue(String[] args, String option) {
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(option)) {
+                return args[i + 1];
             }
-            logJson = new JSONObject(logBuilder.toString());
-        } catch (IOException e) {
-            System.out.println("Error reading content from GZIP file");
-        } catch (JSONException e) {
-            System.out.printf("Error building JSONObject from log gzip file: %s\n", log.getKey());
         }
-        return logJson;
+        return null;
+    }
+
+    private static void printAggregates(CloudTrailAggregator aggregates) {
+        System.out.printf("%d events\n", aggregates.getEvents());
+        System.out.println("Most called:");
+        aggregates.topEventNames(TOP_N).forEach(entry -> System.out.printf("  %s = %d\n", entry.getKey(), entry.getValue()));
+        System.out.println("Top callers:");
+        aggregates.topCallers(TOP_N).forEach(entry -> System.out.printf("  %s = %d\n", entry.getKey(), entry.getValue()));
+        System.out.println("Top errors:");
+        aggregates.topErrors(TOP_N).forEach(entry -> System.out.printf("  %s = %d\n", entry.getKey(), entry.getValue()));
+        aggregates.callsPerMinute().entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .ifPresent(busiest -> System.out.printf("Busiest minute: %s with %d calls\n", busiest.getKey(),
+                        busiest.getValue()));
+    }
+
+    /**
+     * Called from the pipeline's parse threads, one line per event keeps output from different logs readable.
+     */
+    private static void printLogEvent(String logKey, int eventIndex, ObjectNode logEvent) {
+        System.out.printf("%s[%d] %s %s %s\n", logKey, eventIndex, logEvent.path("eventTime").asText(),
+                logEvent.path("eventSource").asText(), logEvent.path("eventName").asText());
     }
 }
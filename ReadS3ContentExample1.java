@@ -3,9 +3,7 @@ import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.List;
 
 
@@ -13,11 +11,16 @@ import java.util.List;
  * NOTE: You should have AWS credentials active through AWS CLI.
  *
  * This example creates an AmazonS3Client (with credentials from AWS CLI), finds a specific S3Bucket, iterates the objects in that 
- * S3Bucket and looks for a specific file. Once that file is found, the contents of that file is parsed to a S3ObjectInputStream 
- * and fed to a BufferedReader in order to build a String containing that files content. The final content is than printed to STDOUT
- * for examination.
+ * S3Bucket and looks for a specific file. Once that file is found, the contents of that file is printed to STDOUT for examination.
+ *
+ * Rather than reading the object through a single connection and holding all of it on the heap, the object is split into
+ * byte ranges that are fetched in parallel with ranged GETs, see {@link S3RangedDownload}. The ranges are handed to
+ * STDOUT in order, so large artifact pulls are limited by bandwidth instead of the latency of one stream.
  */
 public class App {
+    private static final long RANGE_SIZE = 8 * 1024 * 1024;
+    private static final int PARALLEL_RANGES = 8;
+
     public static void main( String[] args ) {
         final String MAINBUCKET = "**Bucket Name***";
         final String SNS_EMAIL_SOURCE_CODE_FILE = "***Path to source file in bucket***";
@@ -33,15 +36,14 @@ public class App {
                 mainBucket = bucket;
             }
         }
-        S3ObjectInputStream snsSourceCodeInputStream = null;
+        String sourceCodeKey = null;
         if (mainBucket != null) {
             try {
                 ObjectListing bucketObjectListings = amazonS3Client.listObjects(mainBucket.getName());
                 if (bucketObjectListings.getObjectSummaries().size() > 0) {
                     for (S3ObjectSummary summary : bucketObjectListings.getObjectSummaries()) {
                         if (summary.getKey().equals(SNS_EMAIL_SOURCE_CODE_FILE)) {
-                            S3Object sourceCodeObject = amazonS3Client.getObject(MAINBUCKET, summary.getKey());
-                            snsSourceCodeInputStream = sourceCodeObject.getObjectContent();
+                            sourceCodeKey = summary.getKey();
                             break;
                         }
                     }
@@ -50,20 +52,13 @@ public class App {
                 System.out.println("Error getting s3 bucket and printing summaries: " + e.getMessage());
             }
         }
-        StringBuilder sourceCode = new StringBuilder();
-        if (snsSourceCodeInputStream != null) {
-            BufferedReader snsSourceCodeBufferedReader = new BufferedReader(new InputStreamReader(snsSourceCodeInputStream));
+        if (sourceCodeKey != null) {
             try {
-                String line = snsSourceCodeBufferedReader.readLine();
-                while (line != null) {
-                    sourceCode.append(line);
-                    sourceCode.append("\n");
-                    line = snsSourceCodeBufferedReader.readLine();
-                }
+                S3RangedDownload.streamRanges(amazonS3Client, MAINBUCKET, sourceCodeKey, RANGE_SIZE, PARALLEL_RANGES, System.out);
+                System.out.flush();
             } catch (IOException e) {
                 System.out.println("Error reading object: " + SNS_EMAIL_SOURCE_CODE_FILE);
             }
         }
-        System.out.println(sourceCode);
     }
 }
@@ -0,0 +1,337 @@
+package org.s3etl;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multipart file upload that picks its own part size and concurrency instead of relying on pre-split part
+ * files. The starting part size comes from the object size: large enough to stay under the 10,000 part limit
+ * and to keep the number of requests (and their cost) down, without making a single part so big that a retry
+ * is expensive. While the upload runs, the measured per-part latency and aggregate bandwidth steer both knobs:
+ *
+ * <ul>
+ *     <li>parts that finish very quickly are dominated by request overhead, so later parts get bigger; parts
+ *     that take very long make each retry costly, so later parts get smaller</li>
+ *     <li>concurrency climbs one step at a time while aggregate bandwidth keeps improving and turns back
+ *     once adding (or removing) a connection stops paying off</li>
+ * </ul>
+ *
+ * S3 allows parts of different sizes as long as every part but the last is at least 5mb, so changing the
+ * part size part way through is fine. The chosen parameters are returned in an {@link UploadReport}.
+ */
+public class AdaptiveUploader {
+    private static final long MB = 1024 * 1024;
+    private static final long DEFAULT_PART_SIZE = 8 * MB;
+    private static final long MAX_INITIAL_PART_SIZE = 64 * MB;
+    private static final long MAX_ADAPTIVE_PART_SIZE = 512 * MB;
+    private static final int TARGET_PARTS = 100;
+
+    // per-part latency outside of this range nudges the part size up or down
+    private static final double FAST_PART_SECONDS = 1.0;
+    private static final double SLOW_PART_SECONDS = 15.0;
+
+    private final S3Client s3Client;
+    private final int initialConcurrency;
+    private final int maxConcurrency;
+    private final int maxRetries;
+
+    public AdaptiveUploader(S3Client s3Client, int initialConcurrency, int maxConcurrency, int maxRetries) {
+        this.s3Client = s3Client;
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.initialConcurrency = Math.max(1, Math.min(initialConcurrency, this.maxConcurrency));
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Part size to start an upload of objectSize bytes with: about {@value #TARGET_PARTS} parts, kept between
+     * 8mb and 64mb, but never so small that the object would need more than 10,000 parts.
+     */
+    public static long initialPartSize(long objectSize) {
+        long preferred = Math.max(DEFAULT_PART_SIZE, Math.min(MAX_INITIAL_PART_SIZE, objectSize / TARGET_PARTS));
+        return roundUpToMB(Math.max(preferred, minimumPartSize(objectSize, 0)));
+    }
+
+    /**
+     * Smallest part size that still fits the remaining bytes in the parts S3 has left to give us.
+     */
+    static long minimumPartSize(long remaining, int partsSoFar) {
+        long partsLeft = Main.MAX_PARTS - partsSoFar;
+        return Math.max(Main.MIN_PART_SIZE, (remaining + partsLeft - 1) / partsLeft);
+    }
+
+    private static long roundUpToMB(long size) {
+        return (size + MB - 1) / MB * MB;
+    }
+
+    public UploadReport upload(String bucket, String key, Path file) throws IOException {
+        CreateMultipartUploadRequest multipartUploadRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+        String uploadId = this.s3Client.createMultipartUpload(multipartUploadRequest).uploadId();
+
+        ExecutorService partUploaders = Executors.newFixedThreadPool(this.maxConcurrency);
+        AtomicReference<Throwable> partFailure = new AtomicReference<>();
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            UploadTuner tuner = new UploadTuner(initialPartSize(fileSize), this.initialConcurrency, this.maxConcurrency);
+
+            List<Future<CompletedPart>> pendingParts = new ArrayList<>();
+            long offset = 0;
+            do {
+                // waits until the tuner's current concurrency allows another part in flight
+                tuner.acquire();
+                if (partFailure.get() != null) {
+                    break;
+                }
+                int partNumber = pendingParts.size() + 1;
+                long length = tuner.nextPartSize(fileSize - offset, partNumber - 1);
+                ByteBuffer slice = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                offset += length;
+
+                pendingParts.add(partUploaders.submit(() -> {
+                    long started = System.nanoTime();
+                    try {
+                        CompletedPart completedPart = Main.uploadPartWithRetry(this.s3Client, bucket, key, uploadId,
+                                partNumber, ignored -> Main.byteBufferBody(slice), this.maxRetries);
+                        tuner.release(length, System.nanoTime() - started);
+                        return completedPart;
+                    } catch (Exception e) {
+                        partFailure.compareAndSet(null, e);
+                        tuner.release();
+                        throw e;
+                    }
+                }));
+            } while (offset < fileSize);
+
+            List<CompletedPart> completedParts = new ArrayList<>(pendingParts.size());
+            for (Future<CompletedPart> pendingPart : pendingParts) {
+                completedParts.add(pendingPart.get());
+            }
+            CompleteMultipartUploadResponse completeMultipartUploadResponse = Main.completeMultipartUpload(
+                    this.s3Client, bucket, key, uploadId, completedParts);
+
+            UploadReport report = tuner.report(fileSize, completedParts.size(), completeMultipartUploadResponse);
+            System.out.println(report);
+            return report;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(bucket, key, uploadId);
+            throw SdkClientException.create("Interrupted while uploading: " + uploadId, e);
+        } catch (ExecutionException e) {
+            abort(bucket, key, uploadId);
+            if (e.getCause() instanceof SdkException) {
+                throw (SdkException) e.getCause();
+            }
+            throw SdkClientException.create("Unable to upload parts for upload: " + uploadId, e.getCause());
+        } catch (IOException | RuntimeException e) {
+            abort(bucket, key, uploadId);
+            throw e;
+        } finally {
+            partUploaders.shutdownNow();
+        }
+    }
+
+    private void abort(String bucket, String key, String uploadId) {
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .build();
+        try {
+            this.s3Client.abortMultipartUpload(abortRequest);
+        } catch (SdkException e) {
+            System.out.printf("Unable to abort upload %s: %s%n", uploadId, e.getMessage());
+        }
+    }
+
+    /**
+     * Gates parts in flight by the current concurrency and adjusts part size and concurrency after each
+     * measurement window. A window closes once as many parts as the current concurrency have finished, so
+     * every connection contributes to the bandwidth it measures.
+     */
+    static final class UploadTuner {
+        private final long initialPartSize;
+        private final int initialConcurrency;
+        private final int maxConcurrency;
+        private final long startedNanos = System.nanoTime();
+
+        private long partSize;
+        private int concurrency;
+        private int peakConcurrency;
+        private int direction = 1;
+        private int inFlight;
+
+        private long windowStartNanos = this.startedNanos;
+        private long windowBytes;
+        private long windowLatencyNanos;
+        private int windowParts;
+        private double lastThroughput;
+
+        UploadTuner(long partSize, int concurrency, int maxConcurrency) {
+            this.initialPartSize = partSize;
+            this.initialConcurrency = concurrency;
+            this.maxConcurrency = maxConcurrency;
+            this.partSize = partSize;
+            this.concurrency = concurrency;
+            this.peakConcurrency = concurrency;
+        }
+
+        synchronized void acquire() throws InterruptedException {
+            while (this.inFlight >= this.concurrency) {
+                wait();
+            }
+            this.inFlight++;
+        }
+
+        /**
+         * Releases a part that failed, without taking it into the measurements.
+         */
+        synchronized void release() {
+            this.inFlight--;
+            notifyAll();
+        }
+
+        synchronized void release(long bytes, long latencyNanos) {
+            this.inFlight--;
+            this.windowBytes += bytes;
+            this.windowLatencyNanos += latencyNanos;
+            this.windowParts++;
+            if (this.windowParts >= Math.max(2, this.concurrency)) {
+                adjust();
+            }
+            notifyAll();
+        }
+
+        synchronized long nextPartSize(long remaining, int partsSoFar) {
+            return Math.min(remaining, Math.max(this.partSize, minimumPartSize(remaining, partsSoFar)));
+        }
+
+        private void adjust() {
+            long now = System.nanoTime();
+            double throughput = this.windowBytes / Math.max(1e-9, (now - this.windowStartNanos) / 1e9);
+            double averageLatencySeconds = this.windowLatencyNanos / (double) this.windowParts / 1e9;
+
+            // keep heading the same way while bandwidth improves, turn around once it drops
+            if (this.lastThroughput > 0 && throughput < this.lastThroughput * 0.95) {
+                this.direction = -this.direction;
+            }
+            this.concurrency = Math.max(1, Math.min(this.maxConcurrency, this.concurrency + this.direction));
+            this.peakConcurrency = Math.max(this.peakConcurrency, this.concurrency);
+
+            if (averageLatencySeconds < FAST_PART_SECONDS) {
+                this.partSize = Math.min(MAX_ADAPTIVE_PART_SIZE, this.partSize * 2);
+            } else if (averageLatencySeconds > SLOW_PART_SECONDS) {
+                this.partSize = Math.max(Main.MIN_PART_SIZE, roundUpToMB(this.partSize / 2));
+            }
+
+            this.lastThroughput = throughput;
+            this.windowStartNanos = now;
+            this.windowBytes = 0;
+            this.windowLatencyNanos = 0;
+            this.windowParts = 0;
+        }
+
+        synchronized UploadReport report(long objectSize, int parts, CompleteMultipartUploadResponse response) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.startedNanos);
+            return new UploadReport(response, objectSize, parts, this.initialPartSize, this.partSize,
+                    this.initialConcurrency, this.concurrency, this.peakConcurrency, elapsedMillis);
+        }
+    }
+
+    /**
+     * Parameters an adaptive upload settled on, along with the completed upload itself.
+     */
+    public static final class UploadReport {
+        private final CompleteMultipartUploadResponse response;
+        private final long objectSize;
+        private final int parts;
+        private final long initialPartSize;
+        private final long finalPartSize;
+        private final int initialConcurrency;
+        private final int finalConcurrency;
+        private final int peakConcurrency;
+        private final long elapsedMillis;
+
+        UploadReport(CompleteMultipartUploadResponse response, long objectSize, int parts, long initialPartSize,
+                     long finalPartSize, int initialConcurrency, int finalConcurrency, int peakConcurrency,
+                     long elapsedMillis) {
+            this.response = response;
+            this.objectSize = objectSize;
+            this.parts = parts;
+            this.initialPartSize = initialPartSize;
+            this.finalPartSize = finalPartSize;
+            this.initialConcurrency = initialConcurrency;
+            this.finalConcurrency = finalConcurrency;
+            this.peakConcurrency = peakConcurrency;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public CompleteMultipartUploadResponse getResponse() {
+            return this.response;
+        }
+
+        public long getObjectSize() {
+            return this.objectSize;
+        }
+
+        public int getParts() {
+            return this.parts;
+        }
+
+        public long getInitialPartSize() {
+            return this.initialPartSize;
+        }
+
+        public long getFinalPartSize() {
+            return this.finalPartSize;
+        }
+
+        public int getInitialConcurrency() {
+            return this.initialConcurrency;
+        }
+
+        public int getFinalConcurrency() {
+            return this.finalConcurrency;
+        }
+
+        public int getPeakConcurrency() {
+            return this.peakConcurrency;
+        }
+
+        public long getElapsedMillis() {
+            return this.elapsedMillis;
+        }
+
+        public double getThroughputMBps() {
+            return this.elapsedMillis == 0 ? 0 : (this.objectSize / (double) MB) / (this.elapsedMillis / 1000.0);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("uploaded %d bytes in %d parts over %d ms (%.1f MB/s): part size %dMB -> %dMB, "
+                            + "concurrency %d -> %d (peak %d)", this.objectSize, this.parts, this.elapsedMillis,
+                    getThroughputMBps(), this.initialPartSize / MB, this.finalPartSize / MB, this.initialConcurrency,
+                    this.finalConcurrency, this.peakConcurrency);
+        }
+    }
+}
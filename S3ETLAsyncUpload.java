@@ -0,0 +1,256 @@
+package org.s3etl;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.SdkEventLoopGroup;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Non-blocking version of the multipart file upload built on {@link S3AsyncClient}. No thread waits on a part
+ * while it is on the wire, so hundreds of uploads can share one client and the handful of event loop threads
+ * behind it, where the blocking {@link Main} uploads need a thread per part in flight.
+ *
+ * <pre>
+ * S3AsyncClient s3AsyncClient = AsyncMultipartUploader.nettyClient(Region.US_WEST_2, 4, 512);
+ * AsyncMultipartUploader uploader = new AsyncMultipartUploader(s3AsyncClient, 8, 3);
+ *
+ * List&lt;CompletableFuture&lt;CompleteMultipartUploadResponse&gt;&gt; uploads = new ArrayList&lt;&gt;();
+ * for (Path export : exports) {
+ *     uploads.add(uploader.upload("BUCKETNAME", "exports/" + export.getFileName(), export, 16 * 1024 * 1024));
+ * }
+ * CompletableFuture.allOf(uploads.toArray(new CompletableFuture[0])).join();
+ * s3AsyncClient.close();
+ * </pre>
+ */
+public class AsyncMultipartUploader {
+    private static final long RETRY_BACKOFF_MILLIS = 200;
+
+    private final S3AsyncClient s3AsyncClient;
+    private final int maxPartsInFlight;
+    private final int maxRetries;
+
+    /**
+     * @param maxPartsInFlight parts of a single upload sent at once, the client's maxConcurrency caps the total
+     *                         across every upload sharing it
+     */
+    public AsyncMultipartUploader(S3AsyncClient s3AsyncClient, int maxPartsInFlight, int maxRetries) {
+        this.s3AsyncClient = s3AsyncClient;
+        this.maxPartsInFlight = Math.max(1, maxPartsInFlight);
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Async client on the Netty HTTP client with a small, fixed event loop pool. maxConcurrency is the number
+     * of connections every upload sharing the client draws from. The HTTP client builds the event loop group
+     * itself, so closing the returned client shuts its threads down too.
+     */
+    public static S3AsyncClient nettyClient(Region region, int eventLoopThreads, int maxConcurrency) {
+        return S3AsyncClient.builder()
+                .region(region)
+                .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+                        .eventLoopGroupBuilder(SdkEventLoopGroup.builder()
+                                .numberOfThreads(eventLoopThreads))
+                        .maxConcurrency(maxConcurrency))
+                .build();
+    }
+
+    /**
+     * Async client on the AWS Common Runtime, which keeps its own native event loops and connection pool
+     * (needs the aws-crt dependency).
+     */
+    public static S3AsyncClient crtClient(Region region, int maxConcurrency) {
+        return S3AsyncClient.crtBuilder()
+                .region(region)
+                .maxConcurrency(maxConcurrency)
+                .build();
+    }
+
+    /**
+     * Uploads file in partSize parts (the last part holds whatever is left). Each part is sent straight from
+     * a memory mapped slice of the file. If any part fails for good the upload is aborted and the returned
+     * future completes exceptionally.
+     */
+    public CompletableFuture<CompleteMultipartUploadResponse> upload(String bucket, String key, Path file,
+                                                                     long partSize) {
+        FileChannel fileChannel;
+        int parts;
+        try {
+            fileChannel = FileChannel.open(file, StandardOpenOption.READ);
+            parts = Main.partCount(fileChannel.size(), partSize);
+        } catch (IOException | RuntimeException e) {
+            return failed(e);
+        }
+
+        CreateMultipartUploadRequest multipartUploadRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+
+        CompletableFuture<CompleteMultipartUploadResponse> upload = this.s3AsyncClient
+                .createMultipartUpload(multipartUploadRequest)
+                .thenCompose(created -> uploadAndComplete(bucket, key, created.uploadId(), fileChannel, parts,
+                        partSize));
+
+        return upload.whenComplete((response, error) -> closeQuietly(fileChannel));
+    }
+
+    private CompletableFuture<CompleteMultipartUploadResponse> uploadAndComplete(String bucket, String key,
+                                                                                 String uploadId,
+                                                                                 FileChannel fileChannel, int parts,
+                                                                                 long partSize) {
+        CompletedPart[] completedParts = new CompletedPart[parts];
+        AtomicInteger nextPartNumber = new AtomicInteger(1);
+
+        // each lane sends one part at a time and picks up the next unclaimed part when it finishes, so at most
+        // maxPartsInFlight parts of this upload are on the wire and no thread ever waits on one
+        CompletableFuture<?>[] lanes = new CompletableFuture<?>[Math.min(this.maxPartsInFlight, parts)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = lane(bucket, key, uploadId, fileChannel, parts, partSize, nextPartNumber, completedParts);
+        }
+
+        return CompletableFuture.allOf(lanes)
+                .thenCompose(ignored -> complete(bucket, key, uploadId, Arrays.asList(completedParts)))
+                .handle((response, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(response);
+                    }
+                    // the failed lane already stopped the others (see lane), so only parts that were on the wire
+                    // when it failed have finished since, clean up before passing the error on
+                    return abort(bucket, key, uploadId)
+                            .<CompleteMultipartUploadResponse>thenCompose(aborted -> failed(error));
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<Void> lane(String bucket, String key, String uploadId, FileChannel fileChannel,
+                                         int parts, long partSize, AtomicInteger nextPartNumber,
+                                         CompletedPart[] completedParts) {
+        int partNumber = nextPartNumber.getAndIncrement();
+        if (partNumber > parts) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        ByteBuffer slice;
+        try {
+            long offset = (partNumber - 1) * partSize;
+            long length = Math.min(partSize, fileChannel.size() - offset);
+            slice = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException e) {
+            nextPartNumber.set(parts + 1);
+            return failed(e);
+        }
+
+        return uploadPart(bucket, key, uploadId, partNumber, slice, 0)
+                .whenComplete((completedPart, error) -> {
+                    if (error != null) {
+                        // the upload is lost, stop the other lanes from claiming more parts right away rather
+                        // than once they have all run out
+                        nextPartNumber.set(parts + 1);
+                    }
+                })
+                .thenCompose(completedPart -> {
+                    completedParts[partNumber - 1] = completedPart;
+                    return lane(bucket, key, uploadId, fileChannel, parts, partSize, nextPartNumber, completedParts);
+                });
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(String bucket, String key, String uploadId, int partNumber,
+                                                        ByteBuffer slice, int attempt) {
+        UploadPartRequest partRequest = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .build();
+
+        // the body reads a duplicate so a retry starts again from the beginning of the slice
+        AsyncRequestBody body = AsyncRequestBody.fromRemainingByteBufferUnsafe(slice.duplicate());
+        return this.s3AsyncClient.uploadPart(partRequest, body)
+                .handle((response, error) -> {
+                    if (error == null) {
+                        return CompletableFuture.completedFuture(CompletedPart.builder()
+                                .partNumber(partNumber)
+                                .eTag(response.eTag())
+                                .build());
+                    }
+                    if (attempt >= this.maxRetries) {
+                        return AsyncMultipartUploader.<CompletedPart>failed(error);
+                    }
+                    System.out.printf("Retrying part %d of upload %s (attempt %d): %s%n", partNumber, uploadId,
+                            attempt + 1, error.getMessage());
+
+                    // back off without holding a thread, the retry is scheduled rather than slept on
+                    return CompletableFuture.supplyAsync(() -> null,
+                                    CompletableFuture.delayedExecutor(RETRY_BACKOFF_MILLIS << attempt,
+                                            TimeUnit.MILLISECONDS))
+                            .thenCompose(ignored -> uploadPart(bucket, key, uploadId, partNumber, slice, attempt + 1));
+                })
+                .thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<CompleteMultipartUploadResponse> complete(String bucket, String key, String uploadId,
+                                                                        List<CompletedPart> completedParts) {
+        CompletedMultipartUpload multipartUpload = CompletedMultipartUpload.builder()
+                .parts(completedParts)
+                .build();
+
+        CompleteMultipartUploadRequest multipartUploadRequest = CompleteMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(multipartUpload)
+                .build();
+
+        return this.s3AsyncClient.completeMultipartUpload(multipartUploadRequest);
+    }
+
+    private CompletableFuture<Void> abort(String bucket, String key, String uploadId) {
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .build();
+
+        return this.s3AsyncClient.abortMultipartUpload(abortRequest)
+                .handle((response, error) -> {
+                    if (error != null) {
+                        System.out.printf("Unable to abort upload %s: %s%n", uploadId, error.getMessage());
+                    }
+                    return null;
+                });
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return CompletableFuture.failedFuture(cause);
+    }
+
+    private static void closeQuietly(FileChannel fileChannel) {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            System.out.println("Unable to close upload file: " + e.getMessage());
+        }
+    }
+}
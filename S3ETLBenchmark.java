@@ -0,0 +1,332 @@
+package org.s3etl.bench;
+
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.client.builder.AwsClientBuilder.EndpointConfiguration;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.S3Object;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.s3etl.Main;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * JMH benchmarks for the S3 multipart upload and download paths, run against an in-process {@link FakeS3Server}
+ * so they need no AWS account and give repeatable numbers. The fake server adds latency to every request and
+ * can cap bandwidth per connection, which is what makes the difference between the sequential and parallel
+ * strategies visible on loopback.
+ *
+ * Covered:
+ * <ul>
+ *     <li>uploads: {@link Main#buildMultiPartTextUpload} (sequential), {@link Main#buildConcurrentMultiPartTextUpload}
+ *     and {@link Main#buildMultiPartFileUpload} (mapped slices) for each part size</li>
+ *     <li>downloads: the single connection BufferedReader loop ReadS3ContentExample1 started with,
+ *     S3RangedDownload.streamRanges and S3RangedDownload.downloadToFile for each range size</li>
+ *     <li>CloudTrail: the gzip + whole file JSONObject read ReadCloudTrailJsonLogContent started with and the
+ *     streaming CloudTrailEventReader</li>
+ * </ul>
+ *
+ * Every benchmark is reported as throughput (ops/s) and as sampled time, which includes the p99, and running
+ * through {@link #main} adds the GC profiler for allocation rate (gc.alloc.rate.norm is bytes per operation).
+ * To run, put this package in a Maven module next to the examples, set up as in S3ETLBenchmark.md (JMH core
+ * and annotation processor, both AWS SDKs, and the shade plugin that builds benchmarks.jar), then either run
+ * {@link #main} or the generated benchmarks jar:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar S3TransferBenchmark -prof gc -p latencyMillis=20 -p bandwidthBytesPerSecond=0
+ * </pre>
+ *
+ * JMH refuses benchmarks in the default package, while S3RangedDownload and CloudTrailEventReader live there,
+ * so those two are bound through method handles at setup rather than imported. They are looked up by names no
+ * other class in the examples uses (unlike App), so the same classes are benchmarked whatever the classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+public class S3TransferBenchmark {
+    private static final String BUCKET = "benchmark-bucket";
+    private static final String DOWNLOAD_KEY = "downloads/object.bin";
+    private static final String CLOUD_TRAIL_KEY = "AWSLogs/123456789012/CloudTrail/us-west-2/2026/01/01/log.json.gz";
+    private static final int PARTS_IN_FLIGHT = 8;
+    private static final int CLOUD_TRAIL_RECORDS = 5_000;
+
+    @Param({"0", "20"})
+    public long latencyMillis;
+
+    // per connection, 0 for no limit
+    @Param({"0", "52428800"})
+    public long bandwidthBytesPerSecond;
+
+    // part size for uploads, range size for downloads
+    @Param({"5242880", "16777216"})
+    public long partSize;
+
+    @Param({"67108864"})
+    public int objectSize;
+
+    private FakeS3Server fakeS3Server;
+    private S3Client s3Client;
+    private AmazonS3 amazonS3Client;
+    private Path workDirectory;
+    private Path uploadFile;
+    private String[] partPaths;
+
+    private MethodHandle streamRanges;
+    private MethodHandle downloadToFile;
+    private MethodHandle eventReaderFromGzip;
+    private MethodHandle nextEvent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        this.fakeS3Server = new FakeS3Server(this.latencyMillis, this.bandwidthBytesPerSecond).start();
+
+        this.s3Client = S3Client.builder()
+                .region(Region.US_WEST_2)
+                .endpointOverride(this.fakeS3Server.endpoint())
+                .forcePathStyle(true)
+                .credentialsProvider(StaticCredentialsProvider.create(AwsBasicCredentials.create("fake", "fake")))
+                .build();
+
+        this.amazonS3Client = AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new EndpointConfiguration(this.fakeS3Server.endpoint().toString(),
+                        Region.US_WEST_2.id()))
+                .withPathStyleAccessEnabled(true)
+                .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("fake", "fake")))
+                .build();
+
+        // printable bytes so the line based download loop sees lines of a realistic length
+        byte[] content = new byte[this.objectSize];
+        Random random = new Random(42);
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (i % 120 == 119) ? (byte) '\n' : (byte) ('a' + random.nextInt(26));
+        }
+        this.fakeS3Server.putObject(BUCKET, DOWNLOAD_KEY, content);
+        this.fakeS3Server.putObject(BUCKET, CLOUD_TRAIL_KEY, cloudTrailLog());
+
+        this.workDirectory = Files.createTempDirectory("s3-transfer-benchmark");
+        this.uploadFile = Files.write(this.workDirectory.resolve("upload.bin"), content);
+        int parts = (int) ((content.length + this.partSize - 1) / this.partSize);
+        this.partPaths = new String[parts];
+        for (int i = 0; i < parts; i++) {
+            int from = (int) (i * this.partSize);
+            int to = (int) Math.min(content.length, from + this.partSize);
+            byte[] part = new byte[to - from];
+            System.arraycopy(content, from, part, 0, part.length);
+            this.partPaths[i] = Files.write(this.workDirectory.resolve("part" + (i + 1) + ".bin"), part).toString();
+        }
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        Class<?> rangedDownload = Class.forName("S3RangedDownload");
+        this.streamRanges = lookup.findStatic(rangedDownload, "streamRanges", MethodType.methodType(void.class,
+                AmazonS3.class, String.class, String.class, long.class, int.class, OutputStream.class));
+        this.downloadToFile = lookup.findStatic(rangedDownload, "downloadToFile", MethodType.methodType(long.class,
+                AmazonS3.class, String.class, String.class, Path.class, long.class, int.class));
+        Class<?> eventReader = Class.forName("CloudTrailEventReader");
+        this.eventReaderFromGzip = lookup.findStatic(eventReader, "fromGzip",
+                MethodType.methodType(eventReader, InputStream.class));
+        this.nextEvent = lookup.findVirtual(eventReader, "nextEvent",
+                MethodType.methodType(Class.forName("com.fasterxml.jackson.databind.node.ObjectNode")));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        this.s3Client.close();
+        this.amazonS3Client.shutdown();
+        this.fakeS3Server.close();
+        try (Stream<Path> files = Files.walk(this.workDirectory)) {
+            files.sorted(Collections.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public CompleteMultipartUploadResponse sequentialPartFileUpload() {
+        String key = "uploads/sequential.bin";
+        return Main.buildMultiPartTextUpload(this.s3Client, BUCKET, key, createUpload(key), this.partPaths.length,
+                this.partPaths);
+    }
+
+    @Benchmark
+    public CompleteMultipartUploadResponse concurrentPartFileUpload() {
+        String key = "uploads/concurrent.bin";
+        return Main.buildConcurrentMultiPartTextUpload(this.s3Client, BUCKET, key, createUpload(key),
+                this.partPaths.length, this.partPaths, PARTS_IN_FLIGHT, 0);
+    }
+
+    @Benchmark
+    public CompleteMultipartUploadResponse mappedFileUpload() throws IOException {
+        String key = "uploads/mapped.bin";
+        return Main.buildMultiPartFileUpload(this.s3Client, BUCKET, key, createUpload(key), this.uploadFile,
+                this.partSize, PARTS_IN_FLIGHT, 0);
+    }
+
+    /**
+     * The original ReadS3ContentExample1 read: one connection, line by line into a StringBuilder.
+     */
+    @Benchmark
+    public int singleStreamDownload() throws IOException {
+        StringBuilder content = new StringBuilder();
+        try (S3Object object = this.amazonS3Client.getObject(BUCKET, DOWNLOAD_KEY);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(object.getObjectContent()))) {
+            String line = reader.readLine();
+            while (line != null) {
+                content.append(line);
+                content.append("\n");
+                line = reader.readLine();
+            }
+        }
+        return content.length();
+    }
+
+    @Benchmark
+    public void rangedStreamDownload(Blackhole blackhole) throws Throwable {
+        this.streamRanges.invoke(this.amazonS3Client, BUCKET, DOWNLOAD_KEY, this.partSize, PARTS_IN_FLIGHT,
+                new BlackholeOutputStream(blackhole));
+    }
+
+    @Benchmark
+    public long rangedFileDownload() throws Throwable {
+        Path destination = this.workDirectory.resolve("download.bin");
+        return (long) this.downloadToFile.invoke(this.amazonS3Client, BUCKET, DOWNLOAD_KEY, destination,
+                this.partSize, PARTS_IN_FLIGHT);
+    }
+
+    /**
+     * The original ReadCloudTrailJsonLogContent read: gunzip line by line into a StringBuilder, then one
+     * JSONObject for the whole file.
+     */
+    @Benchmark
+    public int cloudTrailWholeFileRead() throws IOException {
+        try (S3Object log = this.amazonS3Client.getObject(BUCKET, CLOUD_TRAIL_KEY);
+             BufferedReader logReader = new BufferedReader(new InputStreamReader(
+                     new GZIPInputStream(log.getObjectContent())))) {
+            StringBuilder logBuilder = new StringBuilder();
+            String line = logReader.readLine();
+            while (line != null) {
+                logBuilder.append(line);
+                line = logReader.readLine();
+            }
+            return new JSONObject(logBuilder.toString()).getJSONArray("Records").length();
+        }
+    }
+
+    @Benchmark
+    public int cloudTrailStreamingRead(Blackhole blackhole) throws Throwable {
+        try (S3Object log = this.amazonS3Client.getObject(BUCKET, CLOUD_TRAIL_KEY);
+             Closeable events = (Closeable) this.eventReaderFromGzip.invoke(log.getObjectContent())) {
+            int count = 0;
+            Object event;
+            while ((event = this.nextEvent.invoke(events)) != null) {
+                blackhole.consume(event);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    private String createUpload(String key) {
+        CreateMultipartUploadRequest multipartUploadRequest = CreateMultipartUploadRequest.builder()
+                .bucket(BUCKET)
+                .key(key)
+                .build();
+        return this.s3Client.createMultipartUpload(multipartUploadRequest).uploadId();
+    }
+
+    private static byte[] cloudTrailLog() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            StringBuilder log = new StringBuilder("{\"Records\":[");
+            for (int i = 0; i < CLOUD_TRAIL_RECORDS; i++) {
+                if (i > 0) {
+                    log.append(',');
+                }
+                log.append("{\"eventVersion\":\"1.08\",\"userIdentity\":{\"type\":\"IAMUser\",")
+                        .append("\"arn\":\"arn:aws:iam::123456789012:user/user").append(i % 50).append("\"},")
+                        .append("\"eventTime\":\"2026-01-01T00:").append(String.format("%02d", i % 60))
+                        .append(":00Z\",\"eventSource\":\"s3.amazonaws.com\",\"eventName\":\"GetObject\",")
+                        .append("\"awsRegion\":\"us-west-2\",\"sourceIPAddress\":\"10.0.0.").append(i % 255)
+                        .append("\",\"requestParameters\":{\"bucketName\":\"").append(BUCKET)
+                        .append("\",\"key\":\"objects/").append(i).append("\"},\"responseElements\":null,")
+                        .append("\"eventID\":\"").append(new UUID(i, i)).append("\"}");
+            }
+            gzip.write(log.append("]}").toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Feeds everything written into a {@link Blackhole} so the ranged download isn't optimized away.
+     */
+    private static final class BlackholeOutputStream extends OutputStream {
+        private final Blackhole blackhole;
+
+        private BlackholeOutputStream(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void write(int b) {
+            this.blackhole.consume(b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            this.blackhole.consume(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(S3TransferBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,411 @@
+package org.s3etl.bench;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Small in-process stand-in for S3, good enough to drive the multipart upload and download examples from a
+ * benchmark without touching AWS. Objects live in memory and are addressed path style (/bucket/key), so
+ * clients have to be pointed at {@link #endpoint()} with path style access enabled.
+ *
+ * Every request waits latencyMillis before it is answered and request and response bodies are paced to
+ * bytesPerSecond per connection (0 for no limit), which gives the benchmarks something closer to a real
+ * network than loopback. Supported calls: PutObject, GetObject (with Range and If-Match), HeadObject,
+ * ListObjects (prefix only, no paging), CreateMultipartUpload, UploadPart, ListParts,
+ * CompleteMultipartUpload and AbortMultipartUpload.
+ */
+public class FakeS3Server implements AutoCloseable {
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    private static final String S3_NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+
+    private final long latencyMillis;
+    private final long bytesPerSecond;
+    private final Map<String, StoredObject> objects = new ConcurrentHashMap<>();
+    private final Map<String, NavigableMap<Integer, StoredObject>> uploads = new ConcurrentHashMap<>();
+
+    private HttpServer httpServer;
+    private ExecutorService handlers;
+
+    public FakeS3Server(long latencyMillis, long bytesPerSecond) {
+        this.latencyMillis = latencyMillis;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public FakeS3Server start() throws IOException {
+        this.handlers = Executors.newCachedThreadPool();
+        this.httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.httpServer.setExecutor(this.handlers);
+        this.httpServer.createContext("/", this::handle);
+        this.httpServer.start();
+        return this;
+    }
+
+    public URI endpoint() {
+        return URI.create("http://127.0.0.1:" + this.httpServer.getAddress().getPort());
+    }
+
+    /**
+     * Stores an object directly, without going through a client.
+     */
+    public void putObject(String bucket, String key, byte[] content) {
+        this.objects.put(bucket + "/" + key, new StoredObject(content, md5ETag(content)));
+    }
+
+    public byte[] getObject(String bucket, String key) {
+        StoredObject object = this.objects.get(bucket + "/" + key);
+        return object == null ? null : object.content;
+    }
+
+    @Override
+    public void close() {
+        if (this.httpServer != null) {
+            this.httpServer.stop(0);
+            this.handlers.shutdownNow();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(this.latencyMillis);
+
+            String path = exchange.getRequestURI().getRawPath().substring(1);
+            int keyStart = path.indexOf('/');
+            String bucket = keyStart < 0 ? path : path.substring(0, keyStart);
+            String key = keyStart < 0 ? "" : URLDecoder.decode(path.substring(keyStart + 1), "UTF-8");
+            Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+
+            if (key.isEmpty() && method.equals("GET")) {
+                listObjects(exchange, bucket, query.getOrDefault("prefix", ""));
+            } else if (method.equals("POST") && query.containsKey("uploads")) {
+                createMultipartUpload(exchange, bucket, key);
+            } else if (method.equals("PUT") && query.containsKey("uploadId")) {
+                uploadPart(exchange, query.get("uploadId"), Integer.parseInt(query.get("partNumber")));
+            } else if (method.equals("GET") && query.containsKey("uploadId")) {
+                listParts(exchange, bucket, key, query.get("uploadId"));
+            } else if (method.equals("POST") && query.containsKey("uploadId")) {
+                completeMultipartUpload(exchange, bucket, key, query.get("uploadId"));
+            } else if (method.equals("DELETE") && query.containsKey("uploadId")) {
+                this.uploads.remove(query.get("uploadId"));
+                drain(exchange);
+                exchange.sendResponseHeaders(204, -1);
+            } else if (method.equals("PUT")) {
+                byte[] content = readBody(exchange);
+                putObject(bucket, key, content);
+                exchange.getResponseHeaders().set("ETag", this.objects.get(bucket + "/" + key).eTag);
+                exchange.sendResponseHeaders(200, -1);
+            } else if (method.equals("HEAD") || method.equals("GET")) {
+                getObject(exchange, bucket, key, method.equals("HEAD"));
+            } else {
+                drain(exchange);
+                sendXml(exchange, 405, error("MethodNotAllowed", method + " is not supported"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            sendXml(exchange, 500, error("InternalError", String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void listObjects(HttpExchange exchange, String bucket, String prefix) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        this.objects.keySet().stream()
+                .filter(name -> name.startsWith(bucket + "/" + prefix))
+                .sorted()
+                .limit(1000)
+                .forEach(name -> {
+                    StoredObject object = this.objects.get(name);
+                    contents.append("<Contents><Key>").append(escape(name.substring(bucket.length() + 1)))
+                            .append("</Key><ETag>").append(escape(object.eTag))
+                            .append("</ETag><Size>").append(object.content.length)
+                            .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+                });
+        sendXml(exchange, 200, "<ListBucketResult xmlns=\"" + S3_NAMESPACE + "\"><Name>" + escape(bucket)
+                + "</Name><Prefix>" + escape(prefix) + "</Prefix><IsTruncated>false</IsTruncated>" + contents
+                + "</ListBucketResult>");
+    }
+
+    private void createMultipartUpload(HttpExchange exchange, String bucket, String key) throws IOException {
+        drain(exchange);
+        String uploadId = UUID.randomUUID().toString();
+        this.uploads.put(uploadId, new ConcurrentSkipListMap<>());
+        sendXml(exchange, 200, "<InitiateMultipartUploadResult xmlns=\"" + S3_NAMESPACE + "\"><Bucket>"
+                + escape(bucket) + "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + uploadId
+                + "</UploadId></InitiateMultipartUploadResult>");
+    }
+
+    private void uploadPart(HttpExchange exchange, String uploadId, int partNumber) throws IOException,
+            InterruptedException {
+        NavigableMap<Integer, StoredObject> parts = this.uploads.get(uploadId);
+        byte[] content = readBody(exchange);
+        if (parts == null) {
+            sendXml(exchange, 404, error("NoSuchUpload", "The specified upload does not exist"));
+            return;
+        }
+        StoredObject part = new StoredObject(content, md5ETag(content));
+        parts.put(partNumber, part);
+        exchange.getResponseHeaders().set("ETag", part.eTag);
+        exchange.sendResponseHeaders(200, -1);
+    }
+
+    private void listParts(HttpExchange exchange, String bucket, String key, String uploadId) throws IOException {
+        NavigableMap<Integer, StoredObject> parts = this.uploads.get(uploadId);
+        if (parts == null) {
+            sendXml(exchange, 404, error("NoSuchUpload", "The specified upload does not exist"));
+            return;
+        }
+        StringBuilder partsXml = new StringBuilder();
+        for (Map.Entry<Integer, StoredObject> part : parts.entrySet()) {
+            partsXml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><ETag>")
+                    .append(escape(part.getValue().eTag)).append("</ETag><Size>")
+                    .append(part.getValue().content.length).append("</Size></Part>");
+        }
+        sendXml(exchange, 200, "<ListPartsResult xmlns=\"" + S3_NAMESPACE + "\"><Bucket>" + escape(bucket)
+                + "</Bucket><Key>" + escape(key) + "</Key><UploadId>" + uploadId
+                + "</UploadId><IsTruncated>false</IsTruncated>" + partsXml + "</ListPartsResult>");
+    }
+
+    private void completeMultipartUpload(HttpExchange exchange, String bucket, String key, String uploadId)
+            throws IOException {
+        drain(exchange);
+        NavigableMap<Integer, StoredObject> parts = this.uploads.remove(uploadId);
+        if (parts == null) {
+            sendXml(exchange, 404, error("NoSuchUpload", "The specified upload does not exist"));
+            return;
+        }
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+        for (StoredObject part : parts.values()) {
+            content.write(part.content);
+            partDigests.write(md5(part.content));
+        }
+        // multipart ETags are the md5 of the part md5s followed by the part count, like S3's
+        String eTag = "\"" + hex(md5(partDigests.toByteArray())) + "-" + parts.size() + "\"";
+        this.objects.put(bucket + "/" + key, new StoredObject(content.toByteArray(), eTag));
+        sendXml(exchange, 200, "<CompleteMultipartUploadResult xmlns=\"" + S3_NAMESPACE + "\"><Bucket>"
+                + escape(bucket) + "</Bucket><Key>" + escape(key) + "</Key><ETag>" + escape(eTag)
+                + "</ETag></CompleteMultipartUploadResult>");
+    }
+
+    private void getObject(HttpExchange exchange, String bucket, String key, boolean headOnly) throws IOException,
+            InterruptedException {
+        drain(exchange);
+        StoredObject object = this.objects.get(bucket + "/" + key);
+        if (object == null) {
+            if (headOnly) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                sendXml(exchange, 404, error("NoSuchKey", "The specified key does not exist"));
+            }
+            return;
+        }
+        Headers requestHeaders = exchange.getRequestHeaders();
+        String ifMatch = requestHeaders.getFirst("If-Match");
+        if (ifMatch != null && !ifMatch.equals(object.eTag)) {
+            exchange.sendResponseHeaders(412, -1);
+            return;
+        }
+
+        long start = 0;
+        long end = object.content.length - 1;
+        int status = 200;
+        String range = requestHeaders.getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring("bytes=".length()).split("-", 2);
+            start = Long.parseLong(bounds[0]);
+            end = bounds[1].isEmpty() ? end : Math.min(end, Long.parseLong(bounds[1]));
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range",
+                    "bytes " + start + "-" + end + "/" + object.content.length);
+        }
+        long length = Math.max(0, end - start + 1);
+
+        Headers responseHeaders = exchange.getResponseHeaders();
+        responseHeaders.set("ETag", object.eTag);
+        responseHeaders.set("Content-Type", "application/octet-stream");
+        responseHeaders.set("Accept-Ranges", "bytes");
+        responseHeaders.set("Last-Modified", "Thu, 01 Jan 2026 00:00:00 GMT");
+        if (headOnly) {
+            responseHeaders.set("Content-Length", Long.toString(object.content.length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length == 0 ? -1 : length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            paced(out, object.content, (int) start, (int) length);
+        }
+    }
+
+    /**
+     * Reads the request body, undoing the aws-chunked framing the SDKs use for streaming signatures and
+     * trailing checksums.
+     */
+    private byte[] readBody(HttpExchange exchange) throws IOException, InterruptedException {
+        Headers headers = exchange.getRequestHeaders();
+        String contentSha256 = headers.getFirst("x-amz-content-sha256");
+        String contentEncoding = headers.getFirst("Content-Encoding");
+        boolean awsChunked = (contentSha256 != null && contentSha256.startsWith("STREAMING-"))
+                || (contentEncoding != null && contentEncoding.contains("aws-chunked"));
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            long started = System.nanoTime();
+            long total = 0;
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                body.write(chunk, 0, read);
+                total += read;
+                pace(started, total);
+            }
+        }
+        return awsChunked ? decodeAwsChunked(body.toByteArray()) : body.toByteArray();
+    }
+
+    private static byte[] decodeAwsChunked(byte[] framed) {
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream(framed.length);
+        int position = 0;
+        while (position < framed.length) {
+            int lineEnd = indexOfCrlf(framed, position);
+            String header = new String(framed, position, lineEnd - position, StandardCharsets.US_ASCII);
+            int extension = header.indexOf(';');
+            int chunkLength = Integer.parseInt((extension < 0 ? header : header.substring(0, extension)).trim(), 16);
+            position = lineEnd + 2;
+            if (chunkLength == 0) {
+                break; // whatever follows is trailing headers, such as a checksum
+            }
+            decoded.write(framed, position, chunkLength);
+            position += chunkLength + 2;
+        }
+        return decoded.toByteArray();
+    }
+
+    private static int indexOfCrlf(byte[] bytes, int from) {
+        for (int i = from; i < bytes.length - 1; i++) {
+            if (bytes[i] == '\r' && bytes[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return bytes.length;
+    }
+
+    private void paced(OutputStream out, byte[] content, int offset, int length) throws IOException,
+            InterruptedException {
+        long started = System.nanoTime();
+        int written = 0;
+        while (written < length) {
+            int chunk = Math.min(CHUNK_SIZE, length - written);
+            out.write(content, offset + written, chunk);
+            written += chunk;
+            pace(started, written);
+        }
+    }
+
+    /**
+     * Sleeps just long enough for total bytes since started to stay within bytesPerSecond.
+     */
+    private void pace(long started, long total) throws InterruptedException {
+        if (this.bytesPerSecond <= 0) {
+            return;
+        }
+        long dueNanos = total * 1_000_000_000L / this.bytesPerSecond;
+        long aheadNanos = dueNanos - (System.nanoTime() - started);
+        if (aheadNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(aheadNanos);
+        }
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] discard = new byte[CHUNK_SIZE];
+            while (in.read(discard) != -1) {
+                // request bodies we don't need are read so the connection can be reused
+            }
+        }
+    }
+
+    private static void sendXml(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] body = (XML_HEADER + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error(String code, String message) {
+        return "<Error><Code>" + code + "</Code><Message>" + escape(message) + "</Message></Error>";
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) throws IOException {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static String md5ETag(byte[] content) {
+        return "\"" + hex(md5(content)) + "\"";
+    }
+
+    private static byte[] md5(byte[] content) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static final class StoredObject {
+        private final byte[] content;
+        private final String eTag;
+
+        private StoredObject(byte[] content, String eTag) {
+            this.content = content;
+            this.eTag = eTag;
+        }
+    }
+}
@@ -1,21 +1,59 @@
 package org.s3etl;
 
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.http.ContentStreamProvider;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
 import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
 import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.ListPartsRequest;
+import software.amazon.awssdk.services.s3.model.NoSuchUploadException;
+import software.amazon.awssdk.services.s3.model.Part;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 
 public class Main {
+    private static final int MAX_PARTS_IN_FLIGHT = 8;
+    private static final int MAX_PART_RETRIES = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 200;
+
+    // S3 multipart limits: every part but the last must be at least 5mb and an upload holds at most 10,000 parts
+    public static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    public static final int MAX_PARTS = 10_000;
+
     public static void main(String[] args) {
 
         // enable S3 Acceleration - typically used for globally distributed (or ingestion)
@@ -29,9 +67,11 @@ public class Main {
                 .serviceConfiguration(s3Configuration)
                 .build();
 
+        // parts carry CRC32C checksums, which S3 only accepts when the upload is created with the same algorithm
         CreateMultipartUploadRequest multipartUploadRequest = CreateMultipartUploadRequest.builder()
                 .bucket("BUCKETNAME")
                 .key("multipart-uploads/example1.txt")
+                .checksumAlgorithm(ChecksumAlgorithm.CRC32_C)
                 .build();
 
         CreateMultipartUploadResponse multipartUploadResponse = s3Client.createMultipartUpload(multipartUploadRequest);
@@ -40,8 +80,10 @@ public class Main {
         // Multipart Uploads have a minimum of 5mb size, anything smaller can not be used for multipart upload
         String[] partPaths = {"/home/user/mp/part1.txt", "/home/user/mp/part2.txt", "/home/user/mp/part3.txt" };
 
-        CompleteMultipartUploadResponse completeMultipartUploadResponse = buildMultiPartTextUpload(s3Client,
-                "BUCKETNAME", "multipart-uploads/example1.txt", uploadId, partPaths.length, partPaths);
+        // parts are sent over a bounded pool of workers instead of one round trip after another
+        CompleteMultipartUploadResponse completeMultipartUploadResponse = buildChecksummedMultiPartTextUpload(s3Client,
+                "BUCKETNAME", "multipart-uploads/example1.txt", uploadId, partPaths.length, partPaths,
+                ChecksumAlgorithm.CRC32_C, MAX_PARTS_IN_FLIGHT, MAX_PART_RETRIES);
 
         // looking for 200 status code - check bucket to ensure a single txt file has been created containing each part
         System.out.println(completeMultipartUploadResponse.sdkHttpResponse().statusCode());
@@ -71,6 +113,429 @@ public class Main {
             completedParts.add(completedPart);
         }
         
+        return completeMultipartUpload(s3Client, bucket, key, uploadId, completedParts);
+    }
+
+    /**
+     * Same as {@link #buildMultiPartTextUpload} but parts are uploaded concurrently. At most maxInFlight
+     * parts are sent at once and a failed part is retried up to maxRetries times before the whole upload
+     * fails.
+     */
+    public static CompleteMultipartUploadResponse buildConcurrentMultiPartTextUpload(S3Client s3Client, String bucket,
+                                                                                     String key, String uploadId,
+                                                                                     int parts, String[] paths,
+                                                                                     int maxInFlight, int maxRetries) {
+
+        List<CompletedPart> completedParts = uploadPartsConcurrently(s3Client, bucket, key, uploadId, parts,
+                partNumber -> RequestBody.fromFile(Paths.get(paths[partNumber - 1])), maxInFlight, maxRetries);
+
+        return completeMultipartUpload(s3Client, bucket, key, uploadId, completedParts);
+    }
+
+    /**
+     * Same as {@link #buildConcurrentMultiPartTextUpload} with a checksum sent for every part and the composite
+     * checksum S3 reports checked once the upload completes. The upload must have been created with the same
+     * checksum algorithm.
+     *
+     * There is no separate pass over a part to checksum it: the part is hashed as the SDK reads it off the
+     * mapping to send it, and the value goes out as a trailing checksum after the body (see
+     * {@link #uploadPartWithTrailingChecksum}), so hashing and sending are the same pass.
+     */
+    public static CompleteMultipartUploadResponse buildChecksummedMultiPartTextUpload(S3Client s3Client, String bucket,
+                                                                                      String key, String uploadId,
+                                                                                      int parts, String[] paths,
+                                                                                      ChecksumAlgorithm algorithm,
+                                                                                      int maxInFlight, int maxRetries) {
+
+        List<CompletedPart> completedParts = uploadPartsConcurrently(uploadId, partNumbers(parts), partNumber -> {
+            ByteBuffer part = mapFile(Paths.get(paths[partNumber - 1]));
+            return uploadPartWithTrailingChecksum(s3Client, bucket, key, uploadId, partNumber, part, algorithm,
+                    maxRetries);
+        }, maxInFlight, completedPart -> { });
+
+        CompleteMultipartUploadResponse completeMultipartUploadResponse = completeMultipartUpload(s3Client, bucket,
+                key, uploadId, completedParts);
+        PartChecksum.verifyComposite(algorithm, completedParts, completeMultipartUploadResponse);
+        return completeMultipartUploadResponse;
+    }
+
+    private static ByteBuffer mapFile(Path path) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+        }
+    }
+
+    /**
+     * Uploads a single large file without pre-splitting it into part files. The file is divided into
+     * partSize slices (the last slice holds whatever is left) and each part is sent straight from a
+     * read-only memory mapped region of the file, so there are no scratch part files on disk and the
+     * payload is never copied onto the heap.
+     */
+    public static CompleteMultipartUploadResponse buildMultiPartFileUpload(S3Client s3Client, String bucket, String key,
+                                                                           String uploadId, Path file, long partSize,
+                                                                           int maxInFlight, int maxRetries) throws IOException {
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = fileChannel.size();
+            int parts = partCount(fileSize, partSize);
+
+            // a mapping stays valid after its channel is closed, but the parts are all sent before we leave here
+            List<CompletedPart> completedParts = uploadPartsConcurrently(s3Client, bucket, key, uploadId, parts,
+                    partNumber -> mappedPartBody(fileChannel, fileSize, partSize, partNumber), maxInFlight, maxRetries);
+
+            return completeMultipartUpload(s3Client, bucket, key, uploadId, completedParts);
+        }
+    }
+
+    static int partCount(long objectSize, long partSize) {
+        if (partSize < MIN_PART_SIZE || partSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(String.format("Part size must be between %d and %d bytes: %d",
+                    MIN_PART_SIZE, Integer.MAX_VALUE, partSize));
+        }
+        long parts = Math.max(1, (objectSize + partSize - 1) / partSize);
+        if (parts > MAX_PARTS) {
+            throw new IllegalArgumentException(String.format("Part size %d splits %d bytes into more than %d parts",
+                    partSize, objectSize, MAX_PARTS));
+        }
+        return (int) parts;
+    }
+
+    private static RequestBody mappedPartBody(FileChannel fileChannel, long fileSize, long partSize, int partNumber) {
+        long offset = (partNumber - 1) * partSize;
+        long length = Math.min(partSize, fileSize - offset);
+        try {
+            ByteBuffer slice = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            return byteBufferBody(slice);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to map part " + partNumber + " of the upload file", e);
+        }
+    }
+
+    /**
+     * Wraps a buffer in a {@link RequestBody} that streams from the buffer itself. Every stream works on its
+     * own duplicate, so the SDK can open a fresh one when it retries the request.
+     */
+    static RequestBody byteBufferBody(ByteBuffer buffer) {
+        ContentStreamProvider bufferStreams = () -> new ByteBufferInputStream(buffer.duplicate());
+        return RequestBody.fromContentProvider(bufferStreams, buffer.remaining(), "application/octet-stream");
+    }
+
+    /**
+     * Resumable version of {@link #buildMultiPartFileUpload}. Every completed part is written to a checkpoint
+     * journal at journalPath. If a previous run left a journal for the same, unchanged file and object behind, its
+     * upload id is reused: the parts S3 already holds are reconciled with ListParts and only the missing ones are
+     * sent. A journal left by an upload of anything else (including this file before it was rewritten) has its
+     * upload aborted before a new one is started. The journal is removed once the upload completes.
+     */
+    public static CompleteMultipartUploadResponse resumeMultiPartFileUpload(S3Client s3Client, String bucket,
+                                                                            String key, Path file, long partSize,
+                                                                            Path journalPath, int maxInFlight,
+                                                                            int maxRetries) throws IOException {
+
+        try (FileChannel fileChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            BasicFileAttributes sourceAttributes = Files.readAttributes(file, BasicFileAttributes.class);
+            long fileSize = fileChannel.size();
+            int parts = partCount(fileSize, partSize);
+
+            UploadJournal journal = UploadJournal.load(journalPath);
+            Map<Integer, CompletedPart> uploadedParts = null;
+            if (journal != null && journal.matches(bucket, key, sourceAttributes, partSize)) {
+                uploadedParts = reconcileUploadedParts(s3Client, bucket, key, journal, parts, fileSize, partSize);
+            } else if (journal != null) {
+                // the journal's upload can't be resumed for this source, its parts would stay behind and be billed
+                abortStaleUpload(s3Client, journal);
+            }
+            if (uploadedParts == null) {
+                // nothing usable to resume from (no journal, a different source, or the upload is gone)
+                if (journal != null) {
+                    journal.close();
+                }
+                CreateMultipartUploadRequest multipartUploadRequest = CreateMultipartUploadRequest.builder()
+                        .bucket(bucket)
+                        .key(key)
+                        .build();
+                String uploadId = s3Client.createMultipartUpload(multipartUploadRequest).uploadId();
+                journal = UploadJournal.create(journalPath, uploadId, bucket, key, sourceAttributes, partSize);
+                uploadedParts = new TreeMap<>();
+            } else {
+                System.out.printf("Resuming upload %s with %d of %d parts already uploaded%n", journal.getUploadId(),
+                        uploadedParts.size(), parts);
+            }
+
+            List<Integer> missingParts = new ArrayList<>();
+            for (int partNumber = 1; partNumber <= parts; partNumber++) {
+                if (!uploadedParts.containsKey(partNumber)) {
+                    missingParts.add(partNumber);
+                }
+            }
+
+            UploadJournal checkpoints = journal;
+            List<CompletedPart> completedParts = uploadPartsConcurrently(s3Client, bucket, key, journal.getUploadId(),
+                    missingParts, partNumber -> mappedPartBody(fileChannel, fileSize, partSize, partNumber),
+                    maxInFlight, maxRetries, completedPart -> checkpoint(checkpoints, completedPart, fileSize, partSize));
+
+            for (CompletedPart completedPart : completedParts) {
+                uploadedParts.put(completedPart.partNumber(), completedPart);
+            }
+            CompleteMultipartUploadResponse completeMultipartUploadResponse = completeMultipartUpload(s3Client,
+                    bucket, key, journal.getUploadId(), new ArrayList<>(uploadedParts.values()));
+            journal.delete();
+            return completeMultipartUploadResponse;
+        }
+    }
+
+    private static void abortStaleUpload(S3Client s3Client, UploadJournal journal) {
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(journal.getBucket())
+                .key(journal.getKey())
+                .uploadId(journal.getUploadId())
+                .build();
+        try {
+            s3Client.abortMultipartUpload(abortRequest);
+            System.out.printf("Aborted stale upload %s of %s%n", journal.getUploadId(), journal.getKey());
+        } catch (NoSuchUploadException e) {
+            // already completed, aborted or expired
+        } catch (SdkException e) {
+            System.out.printf("Unable to abort stale upload %s: %s%n", journal.getUploadId(), e.getMessage());
+        }
+    }
+
+    /**
+     * Lists the parts S3 holds for the journal's upload and keeps the ones that can be trusted: the part has the
+     * size its byte range calls for and, when the journal recorded it, the same ETag. A part S3 holds that never
+     * made it into the journal was sent just before the previous run died, and is kept as well.
+     *
+     * @return the reusable parts by part number, or null if the upload no longer exists
+     */
+    private static Map<Integer, CompletedPart> reconcileUploadedParts(S3Client s3Client, String bucket, String key,
+                                                                      UploadJournal journal, int parts, long fileSize,
+                                                                      long partSize) {
+        ListPartsRequest listPartsRequest = ListPartsRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(journal.getUploadId())
+                .build();
+
+        Map<Integer, UploadJournal.JournalPart> journalParts = journal.getParts();
+        Map<Integer, CompletedPart> uploadedParts = new TreeMap<>();
+        try {
+            for (Part part : s3Client.listPartsPaginator(listPartsRequest).parts()) {
+                int partNumber = part.partNumber();
+                if (partNumber < 1 || partNumber > parts) {
+                    continue;
+                }
+                long expectedLength = Math.min(partSize, fileSize - (partNumber - 1) * partSize);
+                UploadJournal.JournalPart journalPart = journalParts.get(partNumber);
+                boolean sizeMatches = part.size() != null && part.size() == expectedLength;
+                boolean eTagMatches = journalPart == null || journalPart.getETag().equals(part.eTag());
+                if (sizeMatches && eTagMatches) {
+                    uploadedParts.put(partNumber, CompletedPart.builder()
+                            .partNumber(partNumber)
+                            .eTag(part.eTag())
+                            .build());
+                }
+            }
+        } catch (NoSuchUploadException e) {
+            System.out.printf("Upload %s no longer exists, starting over%n", journal.getUploadId());
+            return null;
+        }
+        return uploadedParts;
+    }
+
+    private static void checkpoint(UploadJournal journal, CompletedPart completedPart, long fileSize, long partSize) {
+        long offset = (completedPart.partNumber() - 1) * partSize;
+        long length = Math.min(partSize, fileSize - offset);
+        try {
+            journal.recordPart(completedPart.partNumber(), completedPart.eTag(), offset, length);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to checkpoint part " + completedPart.partNumber(), e);
+        }
+    }
+
+    /**
+     * Uploads parts 1 through parts over a fixed pool of maxInFlight workers. The body for each part is
+     * created by partBodies from its part number, a new body is requested for each attempt so a retry
+     * never reuses a half consumed stream.
+     *
+     * @return completed parts in part number order
+     */
+    static List<CompletedPart> uploadPartsConcurrently(S3Client s3Client, String bucket, String key, String uploadId,
+                                                       int parts, IntFunction<RequestBody> partBodies,
+                                                       int maxInFlight, int maxRetries) {
+        return uploadPartsConcurrently(s3Client, bucket, key, uploadId, partNumbers(parts), partBodies, maxInFlight,
+                maxRetries, completedPart -> { });
+    }
+
+    /**
+     * Uploads the given part numbers over a fixed pool of maxInFlight workers, calling partListener from the
+     * worker thread as soon as each part has been accepted.
+     *
+     * @return completed parts in the order of partNumbers
+     */
+    static List<CompletedPart> uploadPartsConcurrently(S3Client s3Client, String bucket, String key, String uploadId,
+                                                       List<Integer> partNumbers, IntFunction<RequestBody> partBodies,
+                                                       int maxInFlight, int maxRetries,
+                                                       Consumer<CompletedPart> partListener) {
+        return uploadPartsConcurrently(uploadId, partNumbers, partNumber -> uploadPartWithRetry(s3Client, bucket, key,
+                uploadId, partNumber, partBodies, null, maxRetries), maxInFlight, partListener);
+    }
+
+    /**
+     * Runs partTask for each of the given part numbers over a fixed pool of maxInFlight workers.
+     *
+     * @return completed parts in the order of partNumbers
+     */
+    static List<CompletedPart> uploadPartsConcurrently(String uploadId, List<Integer> partNumbers, PartTask partTask,
+                                                       int maxInFlight, Consumer<CompletedPart> partListener) {
+        if (partNumbers.isEmpty()) {
+            return new ArrayList<>();
+        }
+
+        ExecutorService partUploaders = Executors.newFixedThreadPool(Math.max(1, Math.min(maxInFlight,
+                partNumbers.size())));
+        try {
+            List<Future<CompletedPart>> pendingParts = new ArrayList<>(partNumbers.size());
+            for (int partNumber : partNumbers) {
+                pendingParts.add(partUploaders.submit(() -> {
+                    CompletedPart completedPart = partTask.upload(partNumber);
+                    partListener.accept(completedPart);
+                    return completedPart;
+                }));
+            }
+
+            // parts finish in any order, but the futures were submitted by part number so waiting on
+            // them in turn hands back the ordered list completeMultipartUpload requires
+            List<CompletedPart> completedParts = new ArrayList<>(partNumbers.size());
+            for (Future<CompletedPart> pendingPart : pendingParts) {
+                completedParts.add(pendingPart.get());
+            }
+            return completedParts;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.create("Interrupted while uploading parts for upload: " + uploadId, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof SdkException) {
+                throw (SdkException) e.getCause();
+            }
+            throw SdkClientException.create("Unable to upload parts for upload: " + uploadId, e.getCause());
+        } finally {
+            // cancels anything still queued if a part has failed
+            partUploaders.shutdownNow();
+        }
+    }
+
+    private static List<Integer> partNumbers(int parts) {
+        List<Integer> partNumbers = new ArrayList<>(parts);
+        for (int i = 0; i < parts; i++) {
+            partNumbers.add(i + 1);
+        }
+        return partNumbers;
+    }
+
+    static CompletedPart uploadPartWithRetry(S3Client s3Client, String bucket, String key, String uploadId,
+                                             int partNumber, IntFunction<RequestBody> partBodies,
+                                             int maxRetries) throws InterruptedException {
+        return uploadPartWithRetry(s3Client, bucket, key, uploadId, partNumber, partBodies, null, maxRetries);
+    }
+
+    /**
+     * Uploads a single part, retrying up to maxRetries times. When checksum is given it is sent with the part
+     * and kept on the returned {@link CompletedPart}.
+     */
+    static CompletedPart uploadPartWithRetry(S3Client s3Client, String bucket, String key, String uploadId,
+                                             int partNumber, IntFunction<RequestBody> partBodies,
+                                             PartChecksum checksum, int maxRetries) throws InterruptedException {
+        UploadPartRequest.Builder partRequestBuilder = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber);
+        if (checksum != null) {
+            checksum.applyTo(partRequestBuilder);
+        }
+        UploadPartRequest partRequest = partRequestBuilder.build();
+
+        int attempt = 0;
+        while (true) {
+            try {
+                String etag = s3Client.uploadPart(partRequest, partBodies.apply(partNumber)).eTag();
+                CompletedPart.Builder completedPart = CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(etag);
+                if (checksum != null) {
+                    checksum.applyTo(completedPart);
+                }
+                return completedPart.build();
+            } catch (SdkException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                // back off a little more on each attempt before sending the part again
+                TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                attempt++;
+                System.out.printf("Retrying part %d of upload %s (attempt %d): %s%n", partNumber, uploadId,
+                        attempt, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Uploads a single part from part, retrying up to maxRetries times, and checksums it while it is sent. The
+     * request only names the algorithm, which has the SDK send the part in chunks with the checksum it computes
+     * as a trailer, and the body hashes the same bytes as the SDK pulls them from the stream. The checksum S3
+     * reports for the part is then checked against ours and kept on the returned {@link CompletedPart}.
+     */
+    static CompletedPart uploadPartWithTrailingChecksum(S3Client s3Client, String bucket, String key,
+                                                        String uploadId, int partNumber, ByteBuffer part,
+                                                        ChecksumAlgorithm algorithm,
+                                                        int maxRetries) throws InterruptedException {
+        UploadPartRequest partRequest = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .checksumAlgorithm(algorithm)
+                .build();
+
+        int attempt = 0;
+        while (true) {
+            // every stream the SDK opens (it opens a new one when it retries on its own) starts a new hash, the
+            // one that matters is the last
+            AtomicReference<PartChecksum.Hasher> lastHasher = new AtomicReference<>();
+            ContentStreamProvider hashedStreams = () -> {
+                PartChecksum.Hasher hasher = PartChecksum.hasher(algorithm);
+                lastHasher.set(hasher);
+                return new HashingInputStream(new ByteBufferInputStream(part.duplicate()), hasher);
+            };
+            try {
+                UploadPartResponse partResponse = s3Client.uploadPart(partRequest, RequestBody.fromContentProvider(
+                        hashedStreams, part.remaining(), "application/octet-stream"));
+                PartChecksum checksum = lastHasher.get().finish();
+                String reported = PartChecksum.reported(algorithm, partResponse);
+                if (!checksum.toBase64().equals(reported)) {
+                    throw SdkClientException.create(String.format("%s checksum mismatch for part %d of upload %s: "
+                            + "sent %s but S3 reported %s", algorithm, partNumber, uploadId, checksum.toBase64(),
+                            reported));
+                }
+                return checksum.applyTo(CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(partResponse.eTag()))
+                        .build();
+            } catch (SdkException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                TimeUnit.MILLISECONDS.sleep(RETRY_BACKOFF_MILLIS << attempt);
+                attempt++;
+                System.out.printf("Retrying part %d of upload %s (attempt %d): %s%n", partNumber, uploadId,
+                        attempt, e.getMessage());
+            }
+        }
+    }
+
+    static CompleteMultipartUploadResponse completeMultipartUpload(S3Client s3Client, String bucket, String key,
+                                                                   String uploadId, List<CompletedPart> completedParts) {
+
         // use each completed part 
         CompletedMultipartUpload multipartUpload = CompletedMultipartUpload.builder()
                 .parts(completedParts)
@@ -86,4 +551,95 @@ public class Main {
 
         return s3Client.completeMultipartUpload(multipartUploadRequest);
     }
+
+    /**
+     * Uploads one part and returns it as a {@link CompletedPart}.
+     */
+    @FunctionalInterface
+    interface PartTask {
+        CompletedPart upload(int partNumber) throws Exception;
+    }
+
+    /**
+     * {@link InputStream} over the remaining bytes of a {@link ByteBuffer}. Reads move bytes straight from
+     * the buffer into the caller's array without an intermediate copy of the whole payload.
+     */
+    static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, this.buffer.remaining());
+            this.buffer.get(bytes, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+
+    /**
+     * Feeds every byte read through it to a {@link PartChecksum.Hasher}, so a part is checksummed by the same
+     * reads that send it. Skipping is not supported, skipped bytes would be missing from the checksum.
+     */
+    static final class HashingInputStream extends FilterInputStream {
+        private final PartChecksum.Hasher hasher;
+
+        HashingInputStream(InputStream in, PartChecksum.Hasher hasher) {
+            super(in);
+            this.hasher = hasher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                this.hasher.update(ByteBuffer.wrap(new byte[]{(byte) b}));
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = this.in.read(bytes, offset, length);
+            if (count > 0) {
+                this.hasher.update(ByteBuffer.wrap(bytes, offset, count));
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) {
+            return 0;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,147 @@
+package org.s3etl;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksum of a single multipart upload part, computed by us rather than by the SDK so that it can be
+ * folded into the pass that already reads the bytes. The value is sent with the part (S3 rejects the part if
+ * it doesn't match what arrived) and kept on the {@link CompletedPart}, which is enough to check the
+ * composite checksum S3 reports once the upload is complete.
+ *
+ * Only {@link ChecksumAlgorithm#CRC32_C} and {@link ChecksumAlgorithm#SHA256} are supported. The same
+ * algorithm has to be given to CreateMultipartUpload, S3 won't accept part checksums of any other kind.
+ */
+public final class PartChecksum {
+    private final ChecksumAlgorithm algorithm;
+    private final byte[] checksum;
+
+    private PartChecksum(ChecksumAlgorithm algorithm, byte[] checksum) {
+        this.algorithm = algorithm;
+        this.checksum = checksum;
+    }
+
+    public static Hasher hasher(ChecksumAlgorithm algorithm) {
+        if (algorithm == ChecksumAlgorithm.CRC32_C) {
+            return new Crc32cHasher();
+        }
+        if (algorithm == ChecksumAlgorithm.SHA256) {
+            return new Sha256Hasher();
+        }
+        throw new IllegalArgumentException("Unsupported part checksum algorithm: " + algorithm);
+    }
+
+    public ChecksumAlgorithm getAlgorithm() {
+        return this.algorithm;
+    }
+
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString(this.checksum);
+    }
+
+    UploadPartRequest.Builder applyTo(UploadPartRequest.Builder partRequest) {
+        partRequest.checksumAlgorithm(this.algorithm);
+        if (this.algorithm == ChecksumAlgorithm.CRC32_C) {
+            return partRequest.checksumCRC32C(toBase64());
+        }
+        return partRequest.checksumSHA256(toBase64());
+    }
+
+    CompletedPart.Builder applyTo(CompletedPart.Builder completedPart) {
+        if (this.algorithm == ChecksumAlgorithm.CRC32_C) {
+            return completedPart.checksumCRC32C(toBase64());
+        }
+        return completedPart.checksumSHA256(toBase64());
+    }
+
+    /**
+     * The base64 checksum S3 reports for an uploaded part.
+     */
+    static String reported(ChecksumAlgorithm algorithm, UploadPartResponse partResponse) {
+        return algorithm == ChecksumAlgorithm.CRC32_C ? partResponse.checksumCRC32C() : partResponse.checksumSHA256();
+    }
+
+    /**
+     * Checks the checksum S3 reports for a completed upload against the part checksums we sent. For a
+     * multipart upload S3 reports a checksum of the concatenated part checksums followed by "-{part count}",
+     * so it can be rebuilt from the completed parts alone.
+     *
+     * @throws SdkClientException if the checksums don't match
+     */
+    public static void verifyComposite(ChecksumAlgorithm algorithm, List<CompletedPart> completedParts,
+                                       CompleteMultipartUploadResponse response) {
+        Hasher composite = hasher(algorithm);
+        for (CompletedPart completedPart : completedParts) {
+            String partChecksum = algorithm == ChecksumAlgorithm.CRC32_C
+                    ? completedPart.checksumCRC32C()
+                    : completedPart.checksumSHA256();
+            composite.update(ByteBuffer.wrap(Base64.getDecoder().decode(partChecksum)));
+        }
+        String expected = composite.finish().toBase64() + "-" + completedParts.size();
+        String reported = algorithm == ChecksumAlgorithm.CRC32_C
+                ? response.checksumCRC32C()
+                : response.checksumSHA256();
+        if (!expected.equals(reported)) {
+            throw SdkClientException.create(String.format("Composite %s checksum mismatch for %s: expected %s but "
+                    + "S3 reported %s", algorithm, response.key(), expected, reported));
+        }
+    }
+
+    /**
+     * Running checksum over the bytes of one part, fed as they are read.
+     */
+    public interface Hasher {
+        void update(ByteBuffer bytes);
+
+        PartChecksum finish();
+    }
+
+    private static final class Crc32cHasher implements Hasher {
+        private final CRC32C crc32c = new CRC32C();
+
+        @Override
+        public void update(ByteBuffer bytes) {
+            this.crc32c.update(bytes);
+        }
+
+        @Override
+        public PartChecksum finish() {
+            int value = (int) this.crc32c.getValue();
+            byte[] checksum = ByteBuffer.allocate(Integer.BYTES).putInt(value).array();
+            return new PartChecksum(ChecksumAlgorithm.CRC32_C, checksum);
+        }
+    }
+
+    private static final class Sha256Hasher implements Hasher {
+        private final MessageDigest sha256;
+
+        private Sha256Hasher() {
+            try {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer bytes) {
+            this.sha256.update(bytes);
+        }
+
+        @Override
+        public PartChecksum finish() {
+            return new PartChecksum(ChecksumAlgorithm.SHA256, this.sha256.digest());
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.s3etl;
+
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multipart upload from an {@link InputStream} whose total size isn't known up front, such as the output of
+ * an ETL transform. The stream is read into a fixed pool of direct {@link ByteBuffer}s, one part at a time,
+ * and each part is uploaded as soon as its buffer is full. When every buffer is either being filled or in
+ * flight the reader waits for an upload to hand its buffer back, so memory stays bounded by
+ * poolSize x partSize no matter how much data goes through.
+ *
+ * With a checksum algorithm each part's checksum is computed from the bytes just read while they are still
+ * in cache, as the buffer fills, while the previous parts are already on the wire. The checksum goes out with
+ * the part and the composite checksum is verified when the upload completes.
+ *
+ * <pre>
+ * StreamingUploader uploader = new StreamingUploader(s3Client, 16 * 1024 * 1024, 4, 3);
+ * uploader.upload("BUCKETNAME", "multipart-uploads/transform-output.csv", transformOutput);
+ * </pre>
+ */
+public class StreamingUploader {
+    private final S3Client s3Client;
+    private final int partSize;
+    private final int poolSize;
+    private final int maxRetries;
+    private final ChecksumAlgorithm checksumAlgorithm;
+
+    public StreamingUploader(S3Client s3Client, int partSize, int poolSize, int maxRetries) {
+        this(s3Client, partSize, poolSize, maxRetries, null);
+    }
+
+    /**
+     * @param checksumAlgorithm {@link ChecksumAlgorithm#CRC32_C}, {@link ChecksumAlgorithm#SHA256} or null for
+     *                          no part checksums
+     */
+    public StreamingUploader(S3Client s3Client, int partSize, int poolSize, int maxRetries,
+                             ChecksumAlgorithm checksumAlgorithm) {
+        if (partSize < Main.MIN_PART_SIZE) {
+            throw new IllegalArgumentException("Part size must be at least " + Main.MIN_PART_SIZE + " bytes: " + partSize);
+        }
+        this.s3Client = s3Client;
+        this.partSize = partSize;
+        this.poolSize = Math.max(1, poolSize);
+        this.maxRetries = maxRetries;
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    /**
+     * Reads content to the end and uploads it to bucket/key. The upload is aborted if reading the stream
+     * or sending any part fails, so a failed run doesn't leave billable parts behind.
+     */
+    public CompleteMultipartUploadResponse upload(String bucket, String key, InputStream content) throws IOException {
+        CreateMultipartUploadRequest multipartUploadRequest = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .checksumAlgorithm(this.checksumAlgorithm)
+                .build();
+        String uploadId = this.s3Client.createMultipartUpload(multipartUploadRequest).uploadId();
+
+        BlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<>(this.poolSize);
+        for (int i = 0; i < this.poolSize; i++) {
+            bufferPool.add(ByteBuffer.allocateDirect(this.partSize));
+        }
+
+        ExecutorService partUploaders = Executors.newFixedThreadPool(this.poolSize);
+        AtomicReference<Throwable> partFailure = new AtomicReference<>();
+        try {
+            ReadableByteChannel source = Channels.newChannel(content);
+            List<Future<CompletedPart>> pendingParts = new ArrayList<>();
+            int partNumber = 0;
+            boolean endOfStream = false;
+            while (!endOfStream) {
+                // blocks while every buffer is in flight, which is what keeps memory bounded
+                ByteBuffer buffer = bufferPool.take();
+                if (partFailure.get() != null) {
+                    break;
+                }
+                buffer.clear();
+                PartChecksum.Hasher hasher = this.checksumAlgorithm == null
+                        ? null
+                        : PartChecksum.hasher(this.checksumAlgorithm);
+                endOfStream = fill(source, buffer, hasher);
+                buffer.flip();
+                PartChecksum checksum = hasher == null ? null : hasher.finish();
+
+                // an empty stream still needs one (empty) part, otherwise a trailing empty read is dropped
+                if (!buffer.hasRemaining() && partNumber > 0) {
+                    bufferPool.put(buffer);
+                    break;
+                }
+                if (++partNumber > Main.MAX_PARTS) {
+                    throw new IllegalStateException(String.format("Stream is larger than %d parts of %d bytes",
+                            Main.MAX_PARTS, this.partSize));
+                }
+
+                int currentPartNumber = partNumber;
+                pendingParts.add(partUploaders.submit(() -> {
+                    try {
+                        return Main.uploadPartWithRetry(this.s3Client, bucket, key, uploadId, currentPartNumber,
+                                ignored -> Main.byteBufferBody(buffer), checksum, this.maxRetries);
+                    } catch (Exception e) {
+                        partFailure.compareAndSet(null, e);
+                        throw e;
+                    } finally {
+                        bufferPool.add(buffer);
+                    }
+                }));
+            }
+
+            List<CompletedPart> completedParts = new ArrayList<>(pendingParts.size());
+            for (Future<CompletedPart> pendingPart : pendingParts) {
+                completedParts.add(pendingPart.get());
+            }
+            CompleteMultipartUploadResponse completeMultipartUploadResponse = Main.completeMultipartUpload(
+                    this.s3Client, bucket, key, uploadId, completedParts);
+            if (this.checksumAlgorithm != null) {
+                PartChecksum.verifyComposite(this.checksumAlgorithm, completedParts, completeMultipartUploadResponse);
+            }
+            return completeMultipartUploadResponse;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort(bucket, key, uploadId);
+            throw SdkClientException.create("Interrupted while streaming upload: " + uploadId, e);
+        } catch (ExecutionException e) {
+            abort(bucket, key, uploadId);
+            if (e.getCause() instanceof SdkException) {
+                throw (SdkException) e.getCause();
+            }
+            throw SdkClientException.create("Unable to upload parts for upload: " + uploadId, e.getCause());
+        } catch (IOException | RuntimeException e) {
+            abort(bucket, key, uploadId);
+            throw e;
+        } finally {
+            partUploaders.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads from source until buffer is full or the stream ends, feeding each chunk to hasher (when given)
+     * right after it lands in the buffer.
+     *
+     * @return true if the end of the stream was reached
+     */
+    private static boolean fill(ReadableByteChannel source, ByteBuffer buffer, PartChecksum.Hasher hasher)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int chunkStart = buffer.position();
+            if (source.read(buffer) < 0) {
+                return true;
+            }
+            if (hasher != null) {
+                ByteBuffer chunk = buffer.duplicate();
+                chunk.flip().position(chunkStart);
+                hasher.update(chunk);
+            }
+        }
+        return false;
+    }
+
+    private void abort(String bucket, String key, String uploadId) {
+        AbortMultipartUploadRequest abortRequest = AbortMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .build();
+        try {
+            this.s3Client.abortMultipartUpload(abortRequest);
+        } catch (SdkException e) {
+            System.out.printf("Unable to abort upload %s: %s%n", uploadId, e.getMessage());
+        }
+    }
+}
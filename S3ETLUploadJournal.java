@@ -0,0 +1,225 @@
+package org.s3etl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Checkpoint journal for a multipart upload. The journal is a small tab separated text file next to the
+ * upload source: the first line records the upload id along with the bucket, key and slicing of the source
+ * file, plus the source's last modified time and file key, so a file rewritten in place at the same size is not
+ * taken for the one the parts came from. Every part that completes appends a line with its part number, ETag and
+ * byte range. Each line is forced to disk before the part is treated as done, so when a run dies the next one can
+ * pick up the same upload id and only send the parts that are missing.
+ *
+ * <pre>
+ * upload   {uploadId}   {bucket}   {key}   {fileSize}   {partSize}   {lastModifiedMillis}   {fileKey}
+ * part     1            "{etag}"   0       8388608
+ * part     2            "{etag}"   8388608 8388608
+ * </pre>
+ */
+public class UploadJournal implements Closeable {
+    private static final String UPLOAD = "upload";
+    private static final String PART = "part";
+    private static final String SEPARATOR = "\t";
+    // stands in for the file key of file systems that have none
+    private static final String NO_FILE_KEY = "-";
+
+    private final Path journalPath;
+    private final String uploadId;
+    private final String bucket;
+    private final String key;
+    private final long fileSize;
+    private final long partSize;
+    private final long lastModified;
+    private final String fileKey;
+    private final Map<Integer, JournalPart> parts;
+    private final FileChannel journalChannel;
+
+    private UploadJournal(Path journalPath, String uploadId, String bucket, String key, long fileSize, long partSize,
+                          long lastModified, String fileKey, Map<Integer, JournalPart> parts) throws IOException {
+        this.journalPath = journalPath;
+        this.uploadId = uploadId;
+        this.bucket = bucket;
+        this.key = key;
+        this.fileSize = fileSize;
+        this.partSize = partSize;
+        this.lastModified = lastModified;
+        this.fileKey = fileKey;
+        this.parts = parts;
+
+        // rewrite the journal with only the lines we understood, which also drops a line torn by a crash
+        this.journalChannel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writeLine(String.join(SEPARATOR, UPLOAD, uploadId, bucket, key, Long.toString(fileSize),
+                Long.toString(partSize), Long.toString(lastModified), fileKey));
+        for (JournalPart part : parts.values()) {
+            writeLine(part.toLine());
+        }
+    }
+
+    /**
+     * Starts a new journal for the given upload of a source with sourceAttributes, replacing whatever was at
+     * journalPath.
+     */
+    public static UploadJournal create(Path journalPath, String uploadId, String bucket, String key,
+                                       BasicFileAttributes sourceAttributes, long partSize) throws IOException {
+        return new UploadJournal(journalPath, uploadId, bucket, key, sourceAttributes.size(), partSize,
+                sourceAttributes.lastModifiedTime().toMillis(), fileKey(sourceAttributes), new TreeMap<>());
+    }
+
+    /**
+     * Reopens an existing journal.
+     *
+     * @return the journal, or null if there is no journal or its header can't be read
+     */
+    public static UploadJournal load(Path journalPath) throws IOException {
+        if (!Files.exists(journalPath)) {
+            return null;
+        }
+        List<String> lines = Files.readAllLines(journalPath, StandardCharsets.UTF_8);
+        if (lines.isEmpty()) {
+            return null;
+        }
+        String[] header = lines.get(0).split(SEPARATOR);
+        if (header.length != 8 || !header[0].equals(UPLOAD)) {
+            return null;
+        }
+        Map<Integer, JournalPart> parts = new TreeMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            JournalPart part = JournalPart.fromLine(line);
+            if (part != null) {
+                parts.put(part.getPartNumber(), part);
+            }
+        }
+        try {
+            return new UploadJournal(journalPath, header[1], header[2], header[3], Long.parseLong(header[4]),
+                    Long.parseLong(header[5]), Long.parseLong(header[6]), header[7], parts);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if this journal describes an upload of the same source to the same object, sliced the same way.
+     * The source has to be the same file (file key) and unchanged since (size and last modified time), a file
+     * rewritten in place would otherwise be completed from parts of its old content.
+     */
+    public boolean matches(String bucket, String key, BasicFileAttributes sourceAttributes, long partSize) {
+        return this.bucket.equals(bucket) && this.key.equals(key) && this.fileSize == sourceAttributes.size()
+                && this.lastModified == sourceAttributes.lastModifiedTime().toMillis()
+                && this.fileKey.equals(fileKey(sourceAttributes)) && this.partSize == partSize;
+    }
+
+    /**
+     * Records a completed part. Called from the part upload workers, so writes are serialized.
+     */
+    public synchronized void recordPart(int partNumber, String eTag, long offset, long length) throws IOException {
+        JournalPart part = new JournalPart(partNumber, eTag, offset, length);
+        writeLine(part.toLine());
+        this.parts.put(partNumber, part);
+    }
+
+    public String getUploadId() {
+        return this.uploadId;
+    }
+
+    public String getBucket() {
+        return this.bucket;
+    }
+
+    public String getKey() {
+        return this.key;
+    }
+
+    public synchronized Map<Integer, JournalPart> getParts() {
+        return Collections.unmodifiableMap(new TreeMap<>(this.parts));
+    }
+
+    /**
+     * Closes and removes the journal once the upload it tracks has completed.
+     */
+    public void delete() throws IOException {
+        close();
+        Files.deleteIfExists(this.journalPath);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (this.journalChannel.isOpen()) {
+            this.journalChannel.close();
+        }
+    }
+
+    private static String fileKey(BasicFileAttributes attributes) {
+        Object fileKey = attributes.fileKey();
+        // "(dev=...,ino=...)" on unix, kept on one field of the header
+        return fileKey == null ? NO_FILE_KEY : fileKey.toString().replace(SEPARATOR, " ");
+    }
+
+    private void writeLine(String line) throws IOException {
+        ByteBuffer lineBytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (lineBytes.hasRemaining()) {
+            this.journalChannel.write(lineBytes);
+        }
+        this.journalChannel.force(false);
+    }
+
+    public static final class JournalPart {
+        private final int partNumber;
+        private final String eTag;
+        private final long offset;
+        private final long length;
+
+        JournalPart(int partNumber, String eTag, long offset, long length) {
+            this.partNumber = partNumber;
+            this.eTag = eTag;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private static JournalPart fromLine(String line) {
+            String[] fields = line.split(SEPARATOR);
+            if (fields.length != 5 || !fields[0].equals(PART)) {
+                return null;
+            }
+            try {
+                return new JournalPart(Integer.parseInt(fields[1]), fields[2], Long.parseLong(fields[3]),
+                        Long.parseLong(fields[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        private String toLine() {
+            return String.join(SEPARATOR, PART, Integer.toString(this.partNumber), this.eTag,
+                    Long.toString(this.offset), Long.toString(this.length));
+        }
+
+        public int getPartNumber() {
+            return this.partNumber;
+        }
+
+        public String getETag() {
+            return this.eTag;
+        }
+
+        public long getOffset() {
+            return this.offset;
+        }
+
+        public long getLength() {
+            return this.length;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel ranged GET downloads of S3 objects, used by ReadS3ContentExample1. The object is split into byte ranges
+ * that are fetched over several connections at once. {@link #streamRanges} hands the ranges to an OutputStream in
+ * order and {@link #downloadToFile} writes each range straight into a preallocated file at its offset.
+ *
+ * Kept in a class of its own, rather than in the example's App, so it has a name no other example uses (the
+ * benchmarks load it by name).
+ *
+ * <pre>
+ * S3RangedDownload.downloadToFile(amazonS3Client, bucket, key, Paths.get("object.bin"), 8 * 1024 * 1024, 8);
+ * </pre>
+ */
+public final class S3RangedDownload {
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private S3RangedDownload() {
+    }
+
+    /**
+     * Downloads an object into destination by fetching rangeSize byte ranges over parallelism connections. The
+     * file is preallocated to the object's size and every range is written at its own offset as it arrives, so
+     * ranges can land in any order and nothing is buffered beyond one copy buffer per connection. Every range
+     * is pinned to the object's ETag so an overwrite halfway through fails the download instead of mixing two
+     * versions of the object.
+     *
+     * @return number of bytes downloaded
+     */
+    public static long downloadToFile(AmazonS3 amazonS3Client, String bucket, String key, Path destination,
+                                      long rangeSize, int parallelism) throws IOException {
+        ObjectMetadata objectMetadata = amazonS3Client.getObjectMetadata(bucket, key);
+        long contentLength = objectMetadata.getContentLength();
+        String eTag = objectMetadata.getETag();
+
+        ExecutorService rangeFetchers = Executors.newFixedThreadPool(parallelism);
+        try (RandomAccessFile destinationFile = new RandomAccessFile(destination.toFile(), "rw")) {
+            destinationFile.setLength(contentLength);
+            FileChannel destinationChannel = destinationFile.getChannel();
+
+            List<Future<?>> pendingRanges = new ArrayList<>();
+            for (long start = 0; start < contentLength; start += rangeSize) {
+                long rangeStart = start;
+                long rangeEnd = Math.min(start + rangeSize, contentLength) - 1;
+                pendingRanges.add(rangeFetchers.submit(() -> {
+                    writeRange(amazonS3Client, bucket, key, eTag, rangeStart, rangeEnd, destinationChannel);
+                    return null;
+                }));
+            }
+            awaitAll(pendingRanges);
+            destinationChannel.force(false);
+            return contentLength;
+        } finally {
+            rangeFetchers.shutdownNow();
+        }
+    }
+
+    /**
+     * Fetches an object in rangeSize byte ranges over parallelism connections and writes the ranges to out in
+     * order. At most parallelism ranges are fetched ahead of the one being written, so memory is bounded by
+     * parallelism x rangeSize whatever the size of the object.
+     */
+    public static void streamRanges(AmazonS3 amazonS3Client, String bucket, String key, long rangeSize,
+                                    int parallelism, OutputStream out) throws IOException {
+        ObjectMetadata objectMetadata = amazonS3Client.getObjectMetadata(bucket, key);
+        long contentLength = objectMetadata.getContentLength();
+        String eTag = objectMetadata.getETag();
+
+        ExecutorService rangeFetchers = Executors.newFixedThreadPool(parallelism);
+        try {
+            Deque<Future<byte[]>> window = new ArrayDeque<>();
+            long nextStart = 0;
+            while (nextStart < contentLength || !window.isEmpty()) {
+                // keep the window full, then hand over the oldest range once it has arrived
+                while (nextStart < contentLength && window.size() < parallelism) {
+                    long rangeStart = nextStart;
+                    long rangeEnd = Math.min(nextStart + rangeSize, contentLength) - 1;
+                    window.add(rangeFetchers.submit(() -> readRange(amazonS3Client, bucket, key, eTag, rangeStart,
+                            rangeEnd)));
+                    nextStart = rangeEnd + 1;
+                }
+                out.write(await(window.poll()));
+            }
+        } finally {
+            rangeFetchers.shutdownNow();
+        }
+    }
+
+    /**
+     * Gets one range of the object, pinned to eTag. The SDK answers a failed ETag constraint (412) with null
+     * rather than an exception, which here means the object was overwritten since the download started.
+     */
+    private static S3Object getRange(AmazonS3 amazonS3Client, String bucket, String key, String eTag, long rangeStart,
+                                     long rangeEnd) throws IOException {
+        S3Object range = amazonS3Client.getObject(new GetObjectRequest(bucket, key)
+                .withRange(rangeStart, rangeEnd)
+                .withMatchingETagConstraint(eTag));
+        if (range == null) {
+            throw new IOException(String.format("%s changed while it was being downloaded (ETag is no longer %s)",
+                    key, eTag));
+        }
+        return range;
+    }
+
+    private static void writeRange(AmazonS3 amazonS3Client, String bucket, String key, String eTag, long rangeStart,
+                                   long rangeEnd, FileChannel destinationChannel) throws IOException {
+        byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+        try (S3Object range = getRange(amazonS3Client, bucket, key, eTag, rangeStart, rangeEnd);
+             InputStream rangeStream = range.getObjectContent()) {
+            long position = rangeStart;
+            int read;
+            while ((read = rangeStream.read(copyBuffer)) != -1) {
+                ByteBuffer chunk = ByteBuffer.wrap(copyBuffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    position += destinationChannel.write(chunk, position);
+                }
+            }
+            // the file is preallocated, a short range would otherwise leave zeros behind unnoticed
+            if (position != rangeEnd + 1) {
+                throw new IOException(String.format("Range %d-%d of %s ended after %d bytes", rangeStart, rangeEnd,
+                        key, position - rangeStart));
+            }
+        }
+    }
+
+    private static byte[] readRange(AmazonS3 amazonS3Client, String bucket, String key, String eTag, long rangeStart,
+                                    long rangeEnd) throws IOException {
+        byte[] rangeBytes = new byte[(int) (rangeEnd - rangeStart + 1)];
+        try (S3Object range = getRange(amazonS3Client, bucket, key, eTag, rangeStart, rangeEnd);
+             InputStream rangeStream = range.getObjectContent()) {
+            int offset = 0;
+            int read;
+            while (offset < rangeBytes.length
+                    && (read = rangeStream.read(rangeBytes, offset, rangeBytes.length - offset)) != -1) {
+                offset += read;
+            }
+            if (offset != rangeBytes.length) {
+                throw new IOException(String.format("Range %d-%d of %s ended after %d bytes", rangeStart, rangeEnd,
+                        key, offset));
+            }
+        }
+        return rangeBytes;
+    }
+
+    private static void awaitAll(List<Future<?>> pendingRanges) throws IOException {
+        for (Future<?> pendingRange : pendingRanges) {
+            await(pendingRange);
+        }
+    }
+
+    private static <T> T await(Future<T> pendingRange) throws IOException {
+        try {
+            return pendingRange.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading ranges", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException("Unable to download range", e.getCause());
+        }
+    }
+}
@@ -1,20 +1,29 @@
+import com.amazonaws.AmazonClientException;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.lambda.runtime.Context;
 import com.amazonaws.services.lambda.runtime.RequestHandler;
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.models.s3.S3EventNotification.S3EventNotificationRecord;
-import com.amazonaws.services.sns.AmazonSNSClient;
-import com.amazonaws.services.sns.model.AmazonSNSException;
-import com.amazonaws.services.sns.model.PublishRequest;
-import com.amazonaws.services.sns.model.PublishResult;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3Object;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.awsclients.AwsClientRegistry;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Prerequisites:
  * 1. Setup a notification topic for cloud trail logs and add subscription parameter(email, etc).
  * 2. Through Lambda console, setup new function and ensure role has access policy to publish to
- *    notification topic.
+ *    notification topic and to read (s3:GetObject) the cloud trail logs bucket.
  * 3. Add S3 trigger to Lambda function.
  * 4. Collect the Topic Arn and name for S3 bucket with cloud trail logs.
  * 5. Ensure your project is built with Maven and add the Maven Shade Plugin.
@@ -26,6 +35,17 @@ import java.util.List;
  * a specific S3 bucket which holds our cloud-trail logs, builds a custom message about the log and sends
  * the notification to all subscribers within the SNS Topic.
  *
+ * Rather than announcing every new log, the handler reads each one as it is delivered and only publishes
+ * findings: events that match one of the {@link AlertRule}s below. The log is streamed with a
+ * {@link CloudTrailEventReader} and all rules are pushed down into it as one {@link CloudTrailFilter}, so events
+ * no rule cares about are skipped while parsing. Every rule keeps a rolling count of its matches over the last
+ * hour in a static field, which lives on across warm invocations of the same Lambda instance, so a rule can
+ * stay quiet until it has matched often enough (a single AccessDenied is noise, a burst of them isn't).
+ *
+ * Findings are sent in digest mode (see {@link SnsDigest}): all findings of a rule within DIGEST_WINDOW go out as
+ * one summary message, except for urgent rules such as root account activity, which are published straight
+ * away.
+ *
  * *Note this is just for training purposes but it should be noted that notifications would be better
  * served for priority processes that do not occur often. Otherwise you could run up your AWS bill.
  * If you use this example please ensure to break-down all services used.
@@ -34,37 +54,186 @@ public class LogSNSHandler implements RequestHandler<S3Event, String> {
 
     private static final String CLOUD_TRAIL_LOGS = "***S3 bucket name to cloud trail logs***";
     private static final String SNS_TOPIC_ARN = "***SNS Topic ARN***";
+    private static final String CLOUD_TRAIL_LOG_SUFFIX = ".json.gz";
+    private static final String DIGEST_FOLDER = "/CloudTrail-Digest/";
+    private static final int MAX_SAMPLE_EVENTS = 5;
+    private static final Path DIGEST_STORE = Paths.get("/tmp/sns-digest");
+    private static final Duration DIGEST_WINDOW = Duration.ofMinutes(15);
+
+    private static final List<AlertRule> ALERT_RULES = Arrays.asList(
+            new AlertRule("Root account activity", "userIdentity.type == Root", 1, SnsDigest.Severity.URGENT),
+            new AlertRule("Trail tampering", "eventSource == cloudtrail.amazonaws.com"
+                    + " && (eventName == StopLogging || eventName == DeleteTrail || eventName == UpdateTrail)", 1,
+                    SnsDigest.Severity.URGENT),
+            new AlertRule("Failed console login",
+                    "eventName == ConsoleLogin && responseElements.ConsoleLogin == Failure", 3,
+                    SnsDigest.Severity.WARNING),
+            new AlertRule("Bucket policy change", "eventSource == s3.amazonaws.com"
+                    + " && (eventName == PutBucketPolicy || eventName == DeleteBucketPolicy || eventName == PutBucketAcl)",
+                    1, SnsDigest.Severity.WARNING),
+            new AlertRule("Access denied",
+                    "errorCode == AccessDenied || errorCode == Client.UnauthorizedOperation", 10,
+                    SnsDigest.Severity.INFO));
+    // events matching any rule, this is what the reader filters on
+    private static final CloudTrailFilter ANY_ALERT_RULE = anyOf(ALERT_RULES);
+    // a few logs per notification, read one after another
+    private static final int S3_MAX_CONNECTIONS = 4;
+    // kept across warm invocations, like the rules' counters
+    private static final AmazonS3 AMAZON_S3 = AwsClientRegistry.s3(Regions.US_WEST_2.getName(),
+            AwsClientRegistry.connections(S3_MAX_CONNECTIONS));
 
     @Override
     public String handleRequest(S3Event s3Event, Context context) {
-        List<S3EventNotificationRecord> s3EventNotificationRecords = s3Event.getRecords();
-        if (s3EventNotificationRecords.stream().anyMatch(record -> record.getS3().getBucket().getName().contains(CLOUD_TRAIL_LOGS))) {
-            StringBuilder recordsBuilder = new StringBuilder();
-            recordsBuilder.append("Notification Records Count: ").append(s3EventNotificationRecords.size()).append("\n");
-            for (S3EventNotificationRecord record : s3EventNotificationRecords) {
-                if (record.getS3().getBucket().getName().contains(CLOUD_TRAIL_LOGS)) {
-                    recordsBuilder.append("Event Name: ").append(record.getEventName()).append("\n");
-                    recordsBuilder.append("Event time: ").append(record.getEventTime()).append("\n");
-                    recordsBuilder.append("S3 Object Key: ").append(record.getS3().getObject().getKey()).append("\n");
+        // findings of every log in the notification go out together in as few PublishBatch calls as possible
+        SnsBatchPublisher publisher = SnsBatchPublisher.forRegion(Regions.US_WEST_2.getName());
+        SnsDigest digest = new SnsDigest(publisher, DIGEST_STORE, DIGEST_WINDOW);
+        digest.publishDue();
+        try {
+            for (S3EventNotificationRecord record : s3Event.getRecords()) {
+                String bucket = record.getS3().getBucket().getName();
+                String logKey = record.getS3().getObject().getUrlDecodedKey();
+                if (!bucket.contains(CLOUD_TRAIL_LOGS) || !logKey.endsWith(CLOUD_TRAIL_LOG_SUFFIX)
+                        || logKey.contains(DIGEST_FOLDER)) {
+                    continue;
                 }
+                // a retry of a notification that failed part way through skips the logs it already counted
+                String processedId = bucket + "/" + logKey;
+                if (digest.isProcessed(processedId)) {
+                    System.out.printf("Skipping CloudTrail log %s, already analyzed%n", logKey);
+                    continue;
+                }
+                for (Map.Entry<AlertRule, String> finding : analyzeLog(bucket, logKey).entrySet()) {
+                    AlertRule rule = finding.getKey();
+                    digest.notify(SNS_TOPIC_ARN, rule.name, rule.severity, finding.getValue());
+                }
+                digest.markProcessed(processedId);
+            }
+        } catch (RuntimeException e) {
+            // findings of the logs analyzed before the failure still go out, Lambda retries the rest
+            publisher.flush();
+            throw e;
+        }
+        return publisher.flush() > 0 ? "SUCCESS" : "OK";
+    }
+
+    /**
+     * Streams one log through the alert rules. A log that can't be read fails the invocation, so Lambda retries
+     * it rather than dropping its findings; logs of the same notification that were analyzed already are
+     * recorded in the digest store and skipped on the retry. Counters are only updated once the whole log has
+     * been read, so a log that fails halfway through doesn't count either.
+     *
+     * @return a message for every rule that matched in the log and is over its threshold
+     */
+    private Map<AlertRule, String> analyzeLog(String bucket, String logKey) {
+        long now = System.currentTimeMillis();
+        List<List<ObjectNode>> matchesByRule = new ArrayList<>();
+        for (int rule = 0; rule < ALERT_RULES.size(); rule++) {
+            matchesByRule.add(new ArrayList<>());
+        }
+        try (S3Object log = AMAZON_S3.getObject(bucket, logKey);
+             CloudTrailEventReader events = CloudTrailEventReader.fromGzip(log.getObjectContent(), ANY_ALERT_RULE)) {
+            ObjectNode event;
+            while ((event = events.nextEvent()) != null) {
+                for (int rule = 0; rule < ALERT_RULES.size(); rule++) {
+                    if (ALERT_RULES.get(rule).filter.matches(event)) {
+                        matchesByRule.get(rule).add(event);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new AmazonClientException("Couldn't read CloudTrail log " + logKey, e);
+        }
+
+        Map<AlertRule, String> findings = new LinkedHashMap<>();
+        for (int rule = 0; rule < ALERT_RULES.size(); rule++) {
+            AlertRule alertRule = ALERT_RULES.get(rule);
+            List<ObjectNode> matches = matchesByRule.get(rule);
+            if (matches.isEmpty()) {
+                continue;
             }
-            String message = recordsBuilder.toString();
-            PublishResult result = publishMessage(message);
-            if (result != null && result.getMessageId() != null) {
-                return "SUCCESS";
+            long lastHour = alertRule.recentMatches.add(now, matches.size());
+            if (lastHour >= alertRule.threshold) {
+                findings.put(alertRule, describeFinding(alertRule, logKey, matches, lastHour));
             }
         }
-        return "OK";
+        return findings;
     }
 
-    private PublishResult publishMessage(String message) {
-        try {
-            AmazonSNSClient snsClient = (AmazonSNSClient) AmazonSNSClient.builder().withRegion(Regions.US_WEST_2).build();
-            PublishRequest publishRequest = new PublishRequest().withTopicArn(SNS_TOPIC_ARN).withMessage(message);
-            return snsClient.publish(publishRequest);
-        } catch (AmazonSNSException e) {
-            System.out.println(e.getErrorMessage());
+    private static String describeFinding(AlertRule rule, String logKey, List<ObjectNode> matches, long lastHour) {
+        StringBuilder finding = new StringBuilder();
+        finding.append("Finding: ").append(rule.name).append("\n");
+        finding.append("Rule: ").append(rule.filter).append("\n");
+        finding.append("Matches in log: ").append(matches.size()).append(", in the last hour: ").append(lastHour)
+                .append("\n");
+        finding.append("S3 Object Key: ").append(logKey).append("\n");
+        for (ObjectNode event : matches.subList(0, Math.min(MAX_SAMPLE_EVENTS, matches.size()))) {
+            finding.append("  ").append(event.path("eventTime").asText())
+                    .append(" ").append(event.path("eventSource").asText())
+                    .append(" ").append(event.path("eventName").asText())
+                    .append(" ").append(CloudTrailEventIndex.principalOf(event))
+                    .append(" ").append(event.path("sourceIPAddress").asText())
+                    .append(event.has("errorCode") ? " " + event.path("errorCode").asText() : "")
+                    .append("\n");
+        }
+        return finding.toString();
+    }
+
+    private static CloudTrailFilter anyOf(List<AlertRule> rules) {
+        StringBuilder expression = new StringBuilder();
+        for (AlertRule rule : rules) {
+            if (expression.length() > 0) {
+                expression.append(" || ");
+            }
+            expression.append('(').append(rule.filter).append(')');
+        }
+        return CloudTrailFilter.parse(expression.toString());
+    }
+
+    /**
+     * Events worth a notification. A finding is published for a log with matching events once the rule has
+     * matched at least threshold times in the last hour.
+     */
+    private static final class AlertRule {
+        private final String name;
+        private final CloudTrailFilter filter;
+        private final int threshold;
+        private final SnsDigest.Severity severity;
+        private final RollingCounter recentMatches = new RollingCounter();
+
+        private AlertRule(String name, String filter, int threshold, SnsDigest.Severity severity) {
+            this.name = name;
+            this.filter = CloudTrailFilter.parse(filter);
+            this.threshold = threshold;
+            this.severity = severity;
+        }
+    }
+
+    /**
+     * Count over the last hour, in one minute buckets.
+     */
+    private static final class RollingCounter {
+        private static final long MILLIS_PER_MINUTE = 60_000;
+        private final long[] buckets = new long[60];
+        private long lastMinute;
+
+        /**
+         * Adds count at time now.
+         *
+         * @return the count over the hour up to now
+         */
+        synchronized long add(long now, long count) {
+            long minute = now / MILLIS_PER_MINUTE;
+            // clear the buckets of minutes that have gone by since the last add, at most the whole hour
+            for (long stale = Math.max(this.lastMinute + 1, minute - this.buckets.length + 1); stale <= minute; stale++) {
+                this.buckets[(int) (stale % this.buckets.length)] = 0;
+            }
+            this.lastMinute = Math.max(this.lastMinute, minute);
+            this.buckets[(int) (minute % this.buckets.length)] += count;
+            long total = 0;
+            for (long bucket : this.buckets) {
+                total += bucket;
+            }
+            return total;
         }
-        return null;
     }
 }
@@ -0,0 +1,221 @@
+import com.amazonaws.services.sns.AmazonSNS;
+import com.amazonaws.services.sns.model.AmazonSNSException;
+import com.amazonaws.services.sns.model.BatchResultErrorEntry;
+import com.amazonaws.services.sns.model.PublishBatchRequest;
+import com.amazonaws.services.sns.model.PublishBatchRequestEntry;
+import com.amazonaws.services.sns.model.PublishBatchResult;
+import com.amazonaws.services.sns.model.PublishBatchResultEntry;
+import org.awsclients.AwsClientRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes SNS messages in batches. Building an SNS client per message costs more than the publish itself,
+ * and one Publish call per message multiplies that during bursts (an S3 event storm can bring dozens of
+ * notifications into one invocation). Instead:
+ * <ul>
+ *     <li>there is one publisher, with one client, per region, kept in a static map so warm Lambda invocations
+ *     reuse it</li>
+ *     <li>{@link #publish} only queues a message, {@link #flush} sends everything queued as PublishBatch calls of
+ *     up to {@link #MAX_BATCH_ENTRIES} messages and {@link #MAX_PAYLOAD_BYTES} in total</li>
+ *     <li>a message that is over the payload limit by itself is split into numbered parts</li>
+ *     <li>a caller that has to know a message went out (to drop its own copy, say) passes a callback, it runs once
+ *     SNS has accepted the message, all of its parts for a split one</li>
+ * </ul>
+ *
+ * <pre>
+ * SnsBatchPublisher publisher = SnsBatchPublisher.forRegion("us-west-2");
+ * for (String finding : findings) {
+ *     publisher.publish(topicArn, finding);
+ * }
+ * int published = publisher.flush();
+ * </pre>
+ */
+public class SnsBatchPublisher {
+    public static final int MAX_BATCH_ENTRIES = 10;
+    public static final int MAX_PAYLOAD_BYTES = 256 * 1024;
+    // room for the "(part n/m)" header of a split message
+    private static final int PART_HEADER_BYTES = 32;
+    private static final int SNS_MAX_CONNECTIONS = 4;
+
+    private static final Map<String, SnsBatchPublisher> PUBLISHERS = new ConcurrentHashMap<>();
+
+    private final AmazonSNS snsClient;
+    // topic arn -> messages waiting to be sent to it
+    private final Map<String, List<Queued>> pending = new LinkedHashMap<>();
+
+    SnsBatchPublisher(AmazonSNS snsClient) {
+        this.snsClient = snsClient;
+    }
+
+    /**
+     * The publisher for region, created the first time it's asked for, with the region's SNS client from
+     * {@link AwsClientRegistry}.
+     */
+    public static SnsBatchPublisher forRegion(String region) {
+        return PUBLISHERS.computeIfAbsent(region, name -> new SnsBatchPublisher(AwsClientRegistry.sns(name,
+                AwsClientRegistry.connections(SNS_MAX_CONNECTIONS))));
+    }
+
+    /**
+     * Queues message for topicArn, it is sent on the next {@link #flush}.
+     */
+    public void publish(String topicArn, String message) {
+        publish(topicArn, message, null);
+    }
+
+    /**
+     * Queues message for topicArn, it is sent on the next {@link #flush}. onPublished (if not null) runs during
+     * that flush if SNS accepts the message, a message that fails doesn't run it.
+     */
+    public synchronized void publish(String topicArn, String message, Runnable onPublished) {
+        List<Queued> messages = this.pending.computeIfAbsent(topicArn, topic -> new ArrayList<>());
+        List<String> parts = utf8Length(message) <= MAX_PAYLOAD_BYTES
+                ? Collections.singletonList(message)
+                : split(message);
+        Delivery delivery = new Delivery(parts.size(), onPublished);
+        for (String part : parts) {
+            messages.add(new Queued(part, delivery));
+        }
+    }
+
+    /**
+     * Sends every queued message. Entries SNS fails on its side are sent once more, failures after that (and
+     * batches SNS rejects altogether) are reported and dropped.
+     *
+     * @return number of messages SNS accepted
+     */
+    public synchronized int flush() {
+        int published = 0;
+        for (Map.Entry<String, List<Queued>> topicMessages : this.pending.entrySet()) {
+            List<Queued> retries = new ArrayList<>();
+            published += publishBatches(topicMessages.getKey(), topicMessages.getValue(), retries);
+            if (!retries.isEmpty()) {
+                published += publishBatches(topicMessages.getKey(), retries, null);
+            }
+        }
+        this.pending.clear();
+        return published;
+    }
+
+    /**
+     * @param retries if not null, collects messages of entries that failed with a server side error
+     */
+    private int publishBatches(String topicArn, List<Queued> messages, List<Queued> retries) {
+        int published = 0;
+        int next = 0;
+        while (next < messages.size()) {
+            List<PublishBatchRequestEntry> entries = new ArrayList<>();
+            int payloadBytes = 0;
+            while (next < messages.size() && entries.size() < MAX_BATCH_ENTRIES) {
+                int messageBytes = utf8Length(messages.get(next).message);
+                if (!entries.isEmpty() && payloadBytes + messageBytes > MAX_PAYLOAD_BYTES) {
+                    break;
+                }
+                // ids only need to be unique within the batch, they map a failure back to its message
+                entries.add(new PublishBatchRequestEntry()
+                        .withId(Integer.toString(next))
+                        .withMessage(messages.get(next).message));
+                payloadBytes += messageBytes;
+                next++;
+            }
+
+            try {
+                PublishBatchResult result = this.snsClient.publishBatch(new PublishBatchRequest()
+                        .withTopicArn(topicArn)
+                        .withPublishBatchRequestEntries(entries));
+                published += result.getSuccessful().size();
+                for (PublishBatchResultEntry successful : result.getSuccessful()) {
+                    messages.get(Integer.parseInt(successful.getId())).delivery.partPublished();
+                }
+                for (BatchResultErrorEntry failed : result.getFailed()) {
+                    System.out.printf("Unable to publish message to %s: %s %s\n", topicArn, failed.getCode(),
+                            failed.getMessage());
+                    Queued message = messages.get(Integer.parseInt(failed.getId()));
+                    if (retries != null && !Boolean.TRUE.equals(failed.getSenderFault())) {
+                        retries.add(message);
+                    } else {
+                        message.delivery.failed = true;
+                    }
+                }
+            } catch (AmazonSNSException e) {
+                System.out.printf("Unable to publish %d messages to %s: %s\n", entries.size(), topicArn,
+                        e.getErrorMessage());
+                for (int i = next - entries.size(); i < next; i++) {
+                    messages.get(i).delivery.failed = true;
+                }
+            }
+        }
+        return published;
+    }
+
+    /**
+     * Splits message into parts that each fit in a publish, on character boundaries, with a "(part n/m)" line
+     * in front of every part so subscribers can put it back together.
+     */
+    static List<String> split(String message) {
+        int maxPartBytes = MAX_PAYLOAD_BYTES - PART_HEADER_BYTES;
+        List<String> bodies = new ArrayList<>();
+        int start = 0;
+        int partBytes = 0;
+        for (int i = 0; i < message.length(); ) {
+            int codePoint = message.codePointAt(i);
+            int codePointBytes = codePoint < 0x80 ? 1 : codePoint < 0x800 ? 2 : codePoint < 0x10000 ? 3 : 4;
+            if (partBytes + codePointBytes > maxPartBytes) {
+                bodies.add(message.substring(start, i));
+                start = i;
+                partBytes = 0;
+            }
+            partBytes += codePointBytes;
+            i += Character.charCount(codePoint);
+        }
+        bodies.add(message.substring(start));
+
+        List<String> parts = new ArrayList<>(bodies.size());
+        for (int part = 0; part < bodies.size(); part++) {
+            parts.add(String.format("(part %d/%d)\n%s", part + 1, bodies.size(), bodies.get(part)));
+        }
+        return parts;
+    }
+
+    private static int utf8Length(String message) {
+        return message.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static final class Queued {
+        private final String message;
+        private final Delivery delivery;
+
+        private Queued(String message, Delivery delivery) {
+            this.message = message;
+            this.delivery = delivery;
+        }
+    }
+
+    /**
+     * Outcome of one published message, shared by its parts when it was split.
+     */
+    private static final class Delivery {
+        private final Runnable onPublished;
+        private int remainingParts;
+        private boolean failed;
+
+        private Delivery(int parts, Runnable onPublished) {
+            this.remainingParts = parts;
+            this.onPublished = onPublished;
+        }
+
+        private void partPublished() {
+            this.remainingParts--;
+            if (this.remainingParts == 0 && !this.failed && this.onPublished != null) {
+                this.onPublished.run();
+            }
+        }
+    }
+}
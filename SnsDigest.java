@@ -0,0 +1,299 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Digest mode for SNS notifications. Instead of publishing every notification, notifications are grouped by
+ * topic and key (a rule name, "instance restarts", ...) over a time window, and one summary per group is
+ * published when its window is over. {@link Severity#URGENT} notifications skip the digest and are published
+ * right away. With {@link #notifyFirstNow} the first notification of a window is published right away as well,
+ * and only the ones that follow it within the window are digested.
+ *
+ * Windows are kept in a small file store, one file per topic and key, which stands in for a real state store
+ * such as a DynamoDB table. In Lambda, /tmp survives between warm invocations of the same instance, so that is
+ * where the store goes, but every instance then has its own digests. Nothing runs between invocations either:
+ * a window that is over is published by {@link #publishDue} on the next invocation, so call it at the start of
+ * every invocation (a schedule that invokes the function every few minutes keeps digests on time when
+ * notifications are rare).
+ *
+ * A window that is over is moved aside before its summary is queued, so new notifications start a new window,
+ * and its file is only removed once the publisher has sent the summary. A summary that failed to publish is
+ * queued again by the next {@link #publishDue}, so call it once per {@link SnsBatchPublisher#flush}.
+ *
+ * The store also remembers which inputs (log keys, event ids, ...) a caller has already turned into
+ * notifications, see {@link #markProcessed}, so a Lambda that fails and is retried doesn't notify twice for the
+ * part it got through. Like the windows, that only holds for retries that land on the same instance.
+ *
+ * <pre>
+ * SnsBatchPublisher publisher = SnsBatchPublisher.forRegion("us-west-2");
+ * SnsDigest digest = new SnsDigest(publisher, Paths.get("/tmp/sns-digest"), Duration.ofMinutes(15));
+ * digest.publishDue();
+ * digest.notify(topicArn, "Access denied", SnsDigest.Severity.WARNING, message);
+ * publisher.flush();
+ * </pre>
+ */
+public class SnsDigest {
+    private static final String WINDOW_SUFFIX = ".digest";
+    // a window that is over and whose summary hasn't been published yet
+    private static final String SENDING_SUFFIX = ".sending";
+    private static final String PROCESSED_SUFFIX = ".processed";
+    // window line saying the window's first entry was published when it came in
+    private static final String FIRST_PUBLISHED = "FIRST_PUBLISHED";
+    // longer than Lambda keeps retrying an event
+    private static final Duration PROCESSED_RETENTION = Duration.ofDays(1);
+    private static final int MAX_DIGEST_ENTRIES = 20;
+    private static final int MAX_ENTRY_SUMMARY_LENGTH = 200;
+
+    public enum Severity {
+        INFO, WARNING, URGENT
+    }
+
+    private final SnsBatchPublisher publisher;
+    private final Path storeDirectory;
+    private final Duration window;
+
+    public SnsDigest(SnsBatchPublisher publisher, Path storeDirectory, Duration window) {
+        this.publisher = publisher;
+        this.storeDirectory = storeDirectory;
+        this.window = window;
+    }
+
+    /**
+     * Publishes message right away if it's urgent, otherwise adds it to the window of topicArn and key,
+     * starting one if there is none. Messages are queued on the publisher, it still has to be flushed.
+     */
+    public void notify(String topicArn, String key, Severity severity, String message) {
+        if (severity == Severity.URGENT) {
+            this.publisher.publish(topicArn, message);
+            return;
+        }
+        long now = System.currentTimeMillis();
+        Path windowFile = windowFile(topicArn, key);
+        try {
+            Files.createDirectories(this.storeDirectory);
+            if (!Files.exists(windowFile)) {
+                // header: window start, topic and key, so the window can be published without knowing them
+                Files.write(windowFile, (now + "\t" + escape(topicArn) + "\t" + escape(key) + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            Files.write(windowFile, (now + "\t" + severity + "\t" + escape(message) + "\n")
+                    .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't add to digest " + windowFile, e);
+        }
+    }
+
+    /**
+     * Like {@link #notify}, except that a message starting a window is published right away too, rather than
+     * when the window is over. For notifications where the first one matters (an instance went down) but a
+     * burst after it doesn't need a message each. The message still goes into the window, and only counts as
+     * published once the publisher has sent it, so if that fails it is in the window's summary instead.
+     */
+    public void notifyFirstNow(String topicArn, String key, Severity severity, String message) {
+        Path windowFile = windowFile(topicArn, key);
+        boolean startsWindow = severity != Severity.URGENT && !Files.exists(windowFile);
+        notify(topicArn, key, severity, message);
+        if (startsWindow) {
+            this.publisher.publish(topicArn, message, () -> {
+                try {
+                    // no CREATE, once the window has been moved aside for its summary there's nothing to mark
+                    Files.write(windowFile, (System.currentTimeMillis() + "\t" + FIRST_PUBLISHED + "\n")
+                            .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+                } catch (IOException e) {
+                    System.out.printf("Unable to mark first notification of %s as published: %s\n", windowFile,
+                            e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return true if {@link #markProcessed} has recorded id within the last day
+     */
+    public boolean isProcessed(String id) {
+        return Files.exists(hashedFile(id, PROCESSED_SUFFIX));
+    }
+
+    /**
+     * Records id as processed: whatever notifications it leads to have been handed to this digest. Call it once
+     * they have, a retry then checks {@link #isProcessed} and skips the id.
+     */
+    public void markProcessed(String id) {
+        Path processedFile = hashedFile(id, PROCESSED_SUFFIX);
+        try {
+            Files.createDirectories(this.storeDirectory);
+            Files.write(processedFile, (id + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't record " + id + " as processed", e);
+        }
+    }
+
+    /**
+     * Queues a summary for every window that is over, and again for every earlier summary that failed to
+     * publish. A window is removed from the store once the publisher has sent its summary.
+     *
+     * @return number of digests queued on the publisher
+     */
+    public int publishDue() {
+        if (!Files.isDirectory(this.storeDirectory)) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        int published = 0;
+        try {
+            try (DirectoryStream<Path> processedFiles = Files.newDirectoryStream(this.storeDirectory,
+                    "*" + PROCESSED_SUFFIX)) {
+                for (Path processedFile : processedFiles) {
+                    if (now - Files.getLastModifiedTime(processedFile).toMillis() > PROCESSED_RETENTION.toMillis()) {
+                        Files.deleteIfExists(processedFile);
+                    }
+                }
+            }
+            try (DirectoryStream<Path> sendingFiles = Files.newDirectoryStream(this.storeDirectory,
+                    "*" + SENDING_SUFFIX)) {
+                for (Path sendingFile : sendingFiles) {
+                    if (queueSummary(sendingFile, Files.readAllLines(sendingFile, StandardCharsets.UTF_8))) {
+                        published++;
+                    }
+                }
+            }
+            try (DirectoryStream<Path> windowFiles = Files.newDirectoryStream(this.storeDirectory,
+                    "*" + WINDOW_SUFFIX)) {
+                for (Path windowFile : windowFiles) {
+                    List<String> lines = Files.readAllLines(windowFile, StandardCharsets.UTF_8);
+                    if (lines.isEmpty()) {
+                        Files.delete(windowFile);
+                        continue;
+                    }
+                    long windowStart = Long.parseLong(lines.get(0).split("\t", 2)[0]);
+                    if (now - windowStart < this.window.toMillis()) {
+                        continue;
+                    }
+                    // moved aside so the next notify starts a new window, named by the window start so it can't
+                    // clash with an earlier window of the same topic and key that is still being sent
+                    String fileName = windowFile.getFileName().toString();
+                    Path sendingFile = windowFile.resolveSibling(
+                            fileName.substring(0, fileName.length() - WINDOW_SUFFIX.length())
+                                    + "-" + windowStart + SENDING_SUFFIX);
+                    Files.move(windowFile, sendingFile, StandardCopyOption.ATOMIC_MOVE);
+                    if (queueSummary(sendingFile, lines)) {
+                        published++;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Couldn't read digests in " + this.storeDirectory, e);
+        }
+        return published;
+    }
+
+    /**
+     * Queues the summary of the window in sendingFile, which is deleted once the summary is published.
+     *
+     * @return false if the window has nothing left to publish, it is deleted right away
+     */
+    private boolean queueSummary(Path sendingFile, List<String> lines) throws IOException {
+        List<String> entries = new ArrayList<>();
+        boolean firstPublished = false;
+        for (String line : lines.subList(Math.min(1, lines.size()), lines.size())) {
+            if (line.split("\t", 3)[1].equals(FIRST_PUBLISHED)) {
+                firstPublished = true;
+            } else {
+                entries.add(line);
+            }
+        }
+        if (firstPublished && !entries.isEmpty()) {
+            entries.remove(0);
+        }
+        if (entries.isEmpty()) {
+            Files.delete(sendingFile);
+            return false;
+        }
+        String[] header = lines.get(0).split("\t", 3);
+        long windowStart = Long.parseLong(header[0]);
+        this.publisher.publish(unescape(header[1]), summarize(unescape(header[2]), windowStart, entries), () -> {
+            try {
+                Files.deleteIfExists(sendingFile);
+            } catch (IOException e) {
+                // the summary goes out again on the next publishDue
+                System.out.printf("Unable to remove published digest %s: %s\n", sendingFile, e.getMessage());
+            }
+        });
+        return true;
+    }
+
+    private String summarize(String key, long windowStart, List<String> entries) {
+        StringBuilder digest = new StringBuilder();
+        digest.append("Digest: ").append(key).append("\n");
+        digest.append(entries.size()).append(" notifications between ").append(Instant.ofEpochMilli(windowStart))
+                .append(" and ").append(Instant.ofEpochMilli(windowStart + this.window.toMillis())).append("\n");
+        for (String entry : entries.subList(0, Math.min(MAX_DIGEST_ENTRIES, entries.size()))) {
+            String[] fields = entry.split("\t", 3);
+            String message = unescape(fields[2]);
+            // first line of each message is enough for a digest
+            int endOfLine = message.indexOf('\n');
+            String summary = endOfLine < 0 ? message : message.substring(0, endOfLine);
+            if (summary.length() > MAX_ENTRY_SUMMARY_LENGTH) {
+                summary = summary.substring(0, MAX_ENTRY_SUMMARY_LENGTH) + "...";
+            }
+            digest.append("  ").append(Instant.ofEpochMilli(Long.parseLong(fields[0]))).append(" [").append(fields[1])
+                    .append("] ").append(summary).append("\n");
+        }
+        if (entries.size() > MAX_DIGEST_ENTRIES) {
+            digest.append("  ... and ").append(entries.size() - MAX_DIGEST_ENTRIES).append(" more\n");
+        }
+        return digest.toString();
+    }
+
+    /**
+     * One file per topic and key, named by a hash of the two so any arn or key makes a valid file name.
+     */
+    private Path windowFile(String topicArn, String key) {
+        return hashedFile(topicArn + "\n" + key, WINDOW_SUFFIX);
+    }
+
+    private Path hashedFile(String name, String suffix) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder fileName = new StringBuilder();
+            for (byte b : hash) {
+                fileName.append(String.format("%02x", b));
+            }
+            return this.storeDirectory.resolve(fileName + suffix);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is missing from this JVM", e);
+        }
+    }
+
+    /**
+     * Keeps every stored entry on one line with tab separated fields.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char escaped = value.charAt(++i);
+                unescaped.append(escaped == 'n' ? '\n' : escaped == 't' ? '\t' : escaped);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+}